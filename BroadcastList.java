@@ -1,5 +1,7 @@
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This is the broadcast list class which captures information of a broadcast
@@ -12,7 +14,9 @@ public class BroadcastList
 
     //TODO: Add class fields here
     private String nickname;
-    private List<String> members;
+    // insertion ordered so that broadcasts still fan out in member order, and
+    // safe to fan out from while the owner edits the list
+    private ConcurrentOrderedMap<String, String> members;
 
     /**
      * Constructs a new instance of this class. nickname cannot be null or
@@ -57,14 +61,27 @@ public class BroadcastList
     }
 
     /**
-     * A getter of the list of members of this broadcast list
+     * A getter of the list of members of this broadcast list. The returned list
+     * is a copy, use addMember/removeMember to change the membership
      *
      * @return the list of members of this broadcast list
      */
     public List<String> getMembers()
     {
         //TODO
-        return this.members;
+        return new ArrayList<>(this.members.keySet());
+    }
+
+    /**
+     * A getter of the members of this broadcast list as a read only set which
+     * iterates in the order the members were added. The set reflects later
+     * changes to the list, iterating it while the list changes is safe
+     *
+     * @return the set of members of this broadcast list
+     */
+    public Set<String> getMemberSet()
+    {
+        return this.members.keySet();
     }
 
     /**
@@ -75,7 +92,58 @@ public class BroadcastList
     public void setMembers(List<String> members)
     {
         //TODO
-        this.members = members;
+        ConcurrentOrderedMap<String, String> newMembers = new ConcurrentOrderedMap<>();
+        for (String member : members)
+        {
+            newMembers.putIfAbsent(member, member);
+        }
+        this.members = newMembers;
+    }
+
+    /**
+     * checks whether the supplied nickname is a member of this list
+     *
+     * @param nickname the nickname of the user
+     * @return true if nickname is a member of this list
+     */
+    public boolean isMember(String nickname)
+    {
+        return members.containsKey(nickname);
+    }
+
+    /**
+     * adds a member at the end of this list. For a list a user already owns,
+     * use User.addMemberToBroadcastList instead, which keeps the index of the
+     * user from members to lists up to date
+     *
+     * @param nickname the nickname of the user to add
+     * @return true if nickname was not already a member
+     */
+    public boolean addMember(String nickname)
+    {
+        return members.putIfAbsent(nickname, nickname);
+    }
+
+    /**
+     * removes a member from this list. For a list a user already owns, use
+     * User.removeMemberFromBroadcastList instead
+     *
+     * @param nickname the nickname of the user to remove
+     * @return true if nickname was a member
+     */
+    public boolean removeMember(String nickname)
+    {
+        return members.remove(nickname) != null;
+    }
+
+    /**
+     * the number of members of this list
+     *
+     * @return the number of members of this list
+     */
+    public int size()
+    {
+        return members.size();
     }
 
 }
@@ -0,0 +1,362 @@
+
+import java.util.Arrays;
+
+/**
+ * Parses the commands typed by a logged in user. The command keywords (the
+ * text before the first colon) are matched with a prefix trie while the same
+ * single pass over the characters notes where the colon, the first comma,
+ * the first double quote and the last non blank character are. The
+ * arguments are then just offsets into the command, so nothing is split and
+ * no substring is made until a handler asks for an argument. Bad commands
+ * come back as INVALID instead of throwing.
+ *
+ * The accepted syntax is exactly the one CommandProcessor.processCommand
+ * always had, quirks included: an argument runs up to the end of the command
+ * with trailing blanks cut, a message runs from just after the first double
+ * quote (so its closing quote is kept) and the nickname of remove bcast is
+ * not trimmed.
+ *
+ * @author Duanyang Jing
+ */
+public class CommandParser
+{
+
+    /**
+     * The commands a logged in user can issue
+     */
+    public enum Type
+    {
+        LOGOUT("logout", Shape.NONE),
+        SEND_MESSAGE("send message", Shape.MESSAGE),
+        READ_UNREAD_FROM("read messages unread from", Shape.ONE),
+        READ_ALL_FROM("read messages all from", Shape.ONE),
+        READ_ALL("read messages all", Shape.NONE),
+        READ_UNREAD("read messages unread", Shape.NONE),
+        READ_ALL_PAGE("read messages all page", Shape.LIST),
+        READ_ALL_FROM_PAGE("read messages all from page", Shape.LIST),
+        SEARCH_FN("search fn", Shape.ONE),
+        SEARCH_LN("search ln", Shape.ONE),
+        ADD_FRIEND("add friend", Shape.ONE),
+        REMOVE_FRIEND("remove friend", Shape.ONE),
+        ADD_TO_BCAST("add to bcast", Shape.TWO),
+        REMOVE_FROM_BCAST("remove from bcast", Shape.TWO),
+        REMOVE_BCAST("remove bcast", Shape.ONE_RAW),
+        REMOVE_ACCOUNT("remove account", Shape.NONE),
+        FOLLOWERS("followers", Shape.NONE),
+        CHECKPOINT("checkpoint", Shape.ONE),
+        STATS("stats", Shape.NONE),
+        STATS_EXPORT("stats export", Shape.NONE),
+        INVALID(null, null);
+
+        private final String keyword;
+        private final Shape shape;
+
+        Type(String keyword, Shape shape)
+        {
+            this.keyword = keyword;
+            this.shape = shape;
+        }
+
+        /**
+         * The keyword of the command, the text before its colon
+         *
+         * @return the keyword, null for INVALID
+         */
+        public String getKeyword()
+        {
+            return keyword;
+        }
+    }
+
+    // how the arguments after the keyword are laid out
+    private enum Shape
+    {
+        // nothing, anything after the colon is ignored
+        NONE,
+        // one argument, trimmed
+        ONE,
+        // one argument, not trimmed
+        ONE_RAW,
+        // two trimmed arguments separated by a comma
+        TWO,
+        // a trimmed nickname before a comma and a message after a double quote
+        MESSAGE,
+        // up to three trimmed arguments separated by commas, the missing ones
+        // empty
+        LIST
+    }
+
+    private static final Node ROOT = new Node();
+
+    static
+    {
+        for (Type type : Type.values())
+        {
+            if (type.keyword != null)
+            {
+                add(type);
+            }
+        }
+    }
+
+    private static final ThreadLocal<Command> PARSED =
+            ThreadLocal.withInitial(Command::new);
+
+    // a node of the keyword trie. Children are kept in two small parallel
+    // arrays since no node has more than a handful of them
+    private static class Node
+    {
+
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+        private Type type;
+
+        private Node child(char c)
+        {
+            for (int i = 0; i < labels.length; ++i)
+            {
+                if (labels[i] == c)
+                {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node addChild(char c)
+        {
+            Node child = child(c);
+            if (child == null)
+            {
+                child = new Node();
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = c;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    /**
+     * A parsed command: its type and where its arguments are in the command
+     * string. The same instance is reused for every command parsed on a
+     * thread, so use it before parsing the next command
+     */
+    public static class Command
+    {
+
+        private String source;
+        private Type type;
+        private int firstStart;
+        private int firstEnd;
+        private int secondStart;
+        private int secondEnd;
+        private int thirdStart;
+        private int thirdEnd;
+
+        /**
+         * The type of the command
+         *
+         * @return the type, INVALID if the command does not parse
+         */
+        public Type getType()
+        {
+            return type;
+        }
+
+        /**
+         * The first argument: the nickname for the commands that take one,
+         * the search word for the search commands
+         *
+         * @return the first argument
+         */
+        public String getFirst()
+        {
+            return source.substring(firstStart, firstEnd);
+        }
+
+        /**
+         * The second argument: the message of send message and the broadcast
+         * list nickname of the bcast commands
+         *
+         * @return the second argument
+         */
+        public String getSecond()
+        {
+            return source.substring(secondStart, secondEnd);
+        }
+
+        /**
+         * The third argument, of the commands that take a list
+         *
+         * @return the third argument, empty if there is none
+         */
+        public String getThird()
+        {
+            return source.substring(thirdStart, thirdEnd);
+        }
+
+        private Command invalid()
+        {
+            type = Type.INVALID;
+            return this;
+        }
+    }
+
+    private CommandParser()
+    {
+    }
+
+    private static void add(Type type)
+    {
+        Node node = ROOT;
+        for (int i = 0; i < type.keyword.length(); ++i)
+        {
+            node = node.addChild(type.keyword.charAt(i));
+        }
+        node.type = type;
+    }
+
+    /**
+     * Parses a command
+     *
+     * @param command the command typed by the user
+     * @return the parsed command. This object is reused by the next call on
+     * the same thread
+     */
+    public static Command parse(String command)
+    {
+        Command parsed = PARSED.get();
+        parsed.source = command;
+
+        Node node = ROOT;
+        int colon = -1;
+        int comma = -1;
+        int quote = -1;
+        int end = 0;
+        int length = command.length();
+        for (int i = 0; i < length; ++i)
+        {
+            char c = command.charAt(i);
+            if (colon < 0)
+            {
+                if (c == ':')
+                {
+                    colon = i;
+                } else if (node != null)
+                {
+                    node = node.child(c);
+                }
+            }
+            if (c == ',' && comma < 0)
+            {
+                comma = i;
+            } else if (c == '"' && quote < 0)
+            {
+                quote = i;
+            }
+            // String.trim() cuts everything up to and including ' '
+            if (c > ' ')
+            {
+                end = i + 1;
+            }
+        }
+        if (node == null || node.type == null)
+        {
+            return parsed.invalid();
+        }
+
+        int start = colon + 1;
+        switch (node.type.shape)
+        {
+            case NONE:
+                break;
+            case ONE:
+                setFirst(parsed, command, start, end);
+                break;
+            case ONE_RAW:
+                parsed.firstStart = start;
+                parsed.firstEnd = end;
+                break;
+            case TWO:
+                if (comma < start)
+                {
+                    return parsed.invalid();
+                }
+                setFirst(parsed, command, start, comma);
+                setSecond(parsed, command, comma + 1, end);
+                break;
+            case MESSAGE:
+                if (comma < start)
+                {
+                    return parsed.invalid();
+                }
+                setFirst(parsed, command, start, comma);
+                parsed.secondStart = quote + 1;
+                parsed.secondEnd = end;
+                break;
+            case LIST:
+                setList(parsed, command, start, comma, end);
+                break;
+            default:
+                return parsed.invalid();
+        }
+        parsed.type = node.type;
+        return parsed;
+    }
+
+    // only the list commands need the commas after the first one, so they
+    // are looked for here rather than in the pass over the command
+    private static void setList(Command parsed, String command, int start, int comma, int end)
+    {
+        if (comma < start || comma >= end)
+        {
+            setFirst(parsed, command, start, end);
+            parsed.secondStart = parsed.secondEnd = end;
+            parsed.thirdStart = parsed.thirdEnd = end;
+            return;
+        }
+        setFirst(parsed, command, start, comma);
+        int next = command.indexOf(',', comma + 1);
+        if (next < 0 || next >= end)
+        {
+            setSecond(parsed, command, comma + 1, end);
+            parsed.thirdStart = parsed.thirdEnd = end;
+            return;
+        }
+        setSecond(parsed, command, comma + 1, next);
+        parsed.thirdStart = trimStart(command, next + 1, end);
+        parsed.thirdEnd = trimEnd(command, parsed.thirdStart, end);
+    }
+
+    private static void setFirst(Command parsed, String command, int start, int end)
+    {
+        parsed.firstStart = trimStart(command, start, end);
+        parsed.firstEnd = trimEnd(command, parsed.firstStart, end);
+    }
+
+    private static void setSecond(Command parsed, String command, int start, int end)
+    {
+        parsed.secondStart = trimStart(command, start, end);
+        parsed.secondEnd = trimEnd(command, parsed.secondStart, end);
+    }
+
+    private static int trimStart(String command, int start, int end)
+    {
+        while (start < end && command.charAt(start) <= ' ')
+        {
+            ++start;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String command, int start, int end)
+    {
+        while (end > start && command.charAt(end - 1) <= ' ')
+        {
+            --end;
+        }
+        return end;
+    }
+}
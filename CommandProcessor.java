@@ -1,9 +1,12 @@
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Collections;
 
 
 /**
@@ -14,38 +17,46 @@ import java.util.Collections;
 public class CommandProcessor
 {
 
-    // session added for saving some typing overhead and slight performance benefit
-    private static final Config CONFIG = Config.getInstance();
+    // the session of the calling thread: its logged in user and console I/O
+    private static Session session() {
+        return Session.current();
+    }
 
     /**
      * A method to do login. Should show LOGIN_PROMPT for the nickname,
      * PASSWORD_PROMPT for the password. Says SUCCESSFULLY_LOGGED_IN is
-     * successfully logs in someone. Must set the logged in user in the Config
-     * instance here
+     * successfully logs in someone. Must set the logged in user in the
+     * current Session here
      *
      * @throws WhatsAppException if the credentials supplied by the user are
      * invalid, throw this exception with INVALID_CREDENTIALS as the message
      */
     public static void doLogin() throws WhatsAppException
     {
-        CONFIG.getConsoleOutput().printf(Config.LOGIN_PROMPT);
-        String nickname = CONFIG.getConsoleInput().nextLine();
-        CONFIG.getConsoleOutput().printf(Config.PASSWORD_PROMPT);
-        String password = CONFIG.getConsoleInput().nextLine();
+        session().getConsoleOutput().printf(Config.LOGIN_PROMPT);
+        String nickname = session().getConsoleInput().nextLine();
+        session().getConsoleOutput().printf(Config.PASSWORD_PROMPT);
+        String password = session().getConsoleInput().nextLine();
+        login(nickname, password);
+    }
 
-        Iterator<User> userIterator = CONFIG.getAllUsers().iterator();
-        while (userIterator.hasNext())
+    /**
+     * Logs a user in without prompting, with credentials that were read some
+     * other way. Prints SUCCESSFULLY_LOGGED_IN on success
+     *
+     * @param nickname the nickname of the user
+     * @param password the password of the user
+     * @throws WhatsAppException if the credentials are invalid
+     */
+    public static void login(String nickname, String password) throws WhatsAppException
+    {
+        User user = UserDirectory.getInstance().getUser(nickname);
+        if (user != null && user.getPassword().equals(password))
         {
-            User user = userIterator.next();
-            if (user.getNickname().equals(nickname) && user.getPassword()
-                    .equals(password))
-            {
-                CONFIG.setCurrentUser(user);
-                CONFIG.getConsoleOutput().
-                        printf(Config.SUCCESSFULLY_LOGGED_IN);
-                return;
-            }
-
+            session().setCurrentUser(user);
+            session().getConsoleOutput().
+                    printf(Config.SUCCESSFULLY_LOGGED_IN);
+            return;
         }
         throw new WhatsAppException(String.
                 format(Config.INVALID_CREDENTIALS));
@@ -58,8 +69,8 @@ public class CommandProcessor
     public static void doLogout()
     {
         //TODO
-        CONFIG.setCurrentUser(null);
-        CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_LOGGED_OUT);
+        session().setCurrentUser(null);
+        session().getConsoleOutput().printf(Config.SUCCESSFULLY_LOGGED_OUT);
     }
 
     /**
@@ -76,10 +87,8 @@ public class CommandProcessor
     public static void sendMessage(String nickname, String message) throws WhatsAppRuntimeException, WhatsAppException
     {
         //TODO
-        User currUser = CONFIG.getCurrentUser();
+        User currUser = session().getCurrentUser();
         String fromNickname = currUser.getNickname();
-        Message sentMessage = null;
-        Message receivedMessage = null;
         Date d = new Date();
 
         // message sent to the user himself, throw exception
@@ -92,13 +101,63 @@ public class CommandProcessor
             throw new WhatsAppException(String.format(Config.NICKNAME_DOES_NOT_EXIST, nickname));
         }
 
-        // nickname is valid, could be a friend or a BroadcastList of current user
+        change(currUser, () -> deliverMessage(currUser, nickname, d, message,
+                FanOutExecutor.getInstance()),
+                WriteAheadLog.Operation.SEND_MESSAGE, nickname, message, d.getTime());
+
+        session().getConsoleOutput().printf(Config.MESSAGE_SENT_SUCCESSFULLY);
+    }
+
+    /**
+     * Puts a message from a user into the mailboxes of the sender and of the
+     * receiver, or of every member of the broadcast list it is sent to. Does
+     * no checks, the message is sent as it is
+     *
+     * @param currUser the sender
+     * @param nickname a friend or broadcast list nickname of the sender
+     * @param d the time the message is sent at
+     * @param message the text of the message
+     * @throws WhatsAppException if nickname is neither a friend nor a
+     * broadcast list of the sender
+     */
+    static void deliverMessage(User currUser, String nickname, Date d, String message) throws WhatsAppRuntimeException, WhatsAppException
+    {
+        deliverMessage(currUser, nickname, d, message, null);
+    }
+
+    /**
+     * Puts a message from a user into the mailbox of the sender and hands
+     * the copies of the receivers to a FanOutExecutor, or delivers them
+     * right away if there is none. Does no checks, the message is sent as it
+     * is
+     *
+     * @param currUser the sender
+     * @param nickname a friend or broadcast list nickname of the sender
+     * @param d the time the message is sent at
+     * @param message the text of the message
+     * @param fanOut the executor to deliver on, null to deliver on this
+     * thread
+     * @throws WhatsAppException if nickname is neither a friend nor a
+     * broadcast list of the sender
+     */
+    static void deliverMessage(User currUser, String nickname, Date d, String message,
+            FanOutExecutor fanOut) throws WhatsAppRuntimeException, WhatsAppException
+    {
+        String fromNickname = currUser.getNickname();
+        Message sentMessage;
+        Message receivedMessage;
         // nickname is a friend
         if (currUser.isFriend(nickname)) {
             // Message sent to a friend. Message is read for senders.
             sentMessage = new Message(fromNickname, nickname, null, d, message, true);
             currUser.getMessages().add(sentMessage);
-            User toUser = Helper.getUserFromNickname(CONFIG.getAllUsers(), nickname);
+            if (fanOut != null) {
+                // after any broadcast to the friend that is still on its way
+                fanOut.submit(new MessageEnvelope(fromNickname, d, message),
+                        Collections.singletonList(nickname));
+                return;
+            }
+            User toUser = Helper.getUserFromNickname(UserDirectory.getInstance(), nickname);
             // Message not read for receivers at the begining.
             receivedMessage = new Message(fromNickname, nickname, null, d, message, false);
             toUser.getMessages().add(receivedMessage);
@@ -107,22 +166,30 @@ public class CommandProcessor
             // Message sent to a broadcastlist.
             sentMessage = new Message(fromNickname, null, nickname, d, message, true);
             currUser.getMessages().add(sentMessage);
-            // Need to add received message for each user in the broadcastlist
-            BroadcastList toBroadcastList = Helper.getBroadcastListFromNickname(currUser.getBroadcastLists(), nickname);
+            // Need to add received message for each user in the broadcastlist.
+            // All the received copies share one envelope and only differ in
+            // the receiver and the read flag.
+            BroadcastList toBroadcastList = currUser.getBroadcastList(nickname);
+            MessageEnvelope envelope = new MessageEnvelope(fromNickname, d, message);
+            if (fanOut != null) {
+                Metrics.fanOut(fanOut.submit(envelope, toBroadcastList.getMemberSet()));
+                return;
+            }
             Iterator<String> itr =
-                toBroadcastList.getMembers().iterator();
+                toBroadcastList.getMemberSet().iterator();
+            int receivers = 0;
             while (itr.hasNext()) {
+                ++receivers;
                 String broadcastListMemberNickname = itr.next();
-                User toUser = Helper.getUserFromNickname(CONFIG.getAllUsers(), broadcastListMemberNickname);
+                User toUser = Helper.getUserFromNickname(UserDirectory.getInstance(), broadcastListMemberNickname);
                 receivedMessage =
-                    new Message(fromNickname, broadcastListMemberNickname, null, d, message, false);
+                    new Message(envelope, broadcastListMemberNickname, null, false);
                 toUser.getMessages().add(receivedMessage);
             }
+            Metrics.fanOut(receivers);
         } else {
             throw new WhatsAppException(String.format(Config.NICKNAME_DOES_NOT_EXIST, nickname));
         }
-
-        CONFIG.getConsoleOutput().printf(Config.MESSAGE_SENT_SUCCESSFULLY);
     }
 
     /**
@@ -134,82 +201,146 @@ public class CommandProcessor
      * related to everyone. This can be a broadcast nickname also.
      * @param enforceUnread - send true if you want to display only unread
      * messages.
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text of a message to display was lost
      */
-    public static void readMessage(String nickname, boolean enforceUnread)
+    public static void readMessage(String nickname, boolean enforceUnread) throws WhatsAppRuntimeException
     {
         //TODO
-        User currUser = CONFIG.getCurrentUser();
+        User currUser = session().getCurrentUser();
         List<Message> messages = currUser.getMessages();
+        OutputBuffer out = new OutputBuffer(session().getConsoleOutput());
         boolean existSuchMessage = false;
+        int scanned;
         // user wants to read unread messages from another user
         if (nickname != null && enforceUnread) {
-            for (Message message : messages) {
+            // the archived messages that were read are not even looked at
+            List<Message> conversation = currUser.getMailbox().
+                    getConversation(Collections.singletonList(nickname), true);
+            scanned = conversation.size();
+            for (Message message : conversation) {
                 if (message.getFromNickname().equals(nickname) && !message.isRead()) {
                     existSuchMessage = true;
                     message.setRead(true);
-                    printMessage(message);
+                    printMessage(out, message);
                 }
             }
 
-        // user wants to read all messages related to another user
+        // user wants to read all messages related to another user, including
+        // the broadcasts sent to lists of this user that the other user is in
         } else if (nickname != null && !enforceUnread) {
-            for (Message message: messages) {
-                if (message.getFromNickname().equals(nickname)
-                    || message.getToNickname().equals(nickname)
-                    || isMemberOfBroadcastLists(nickname, currUser)) {
-                        existSuchMessage = true;
-                        message.setRead(true);
-                        printMessage(message);
-                    }
+            List<String> counterparts = new ArrayList<String>();
+            counterparts.add(nickname);
+            for (BroadcastList bl : currUser.getBroadcastListsWithMember(nickname)) {
+                counterparts.add(bl.getNickname());
+            }
+            List<Message> conversation = currUser.getMailbox().getConversation(counterparts);
+            scanned = conversation.size();
+            for (Message message : conversation) {
+                existSuchMessage = true;
+                message.setRead(true);
+                printMessage(out, message);
             }
 
         // user wants to read all unread messages.
         } else if (nickname == null && enforceUnread) {
-            List<Message> unreadMessages = new ArrayList<Message>();
-            for (Message message : messages) {
-                if (!message.isRead()) {
-                    existSuchMessage = true;
-                    message.setRead(true);
-                    unreadMessages.add(message);
-                }
-            }
-
-            Collections.sort(unreadMessages);
-            for (Message message : unreadMessages) {
-                printMessage(message);
+            // the mailbox keeps them in the order they were sent
+            List<Message> unread = currUser.getMailbox().drainUnread();
+            scanned = unread.size();
+            for (Message message : unread) {
+                existSuchMessage = true;
+                message.setRead(true);
+                printMessage(out, message);
             }
 
         // user wants to read all messages related to everyone related to this user.
         } else {
+            scanned = messages.size();
             for (Message message : messages) {
                 existSuchMessage = true;
                 message.setRead(true);
-                printMessage(message);
+                printMessage(out, message);
             }
+            currUser.getMailbox().pruneUnread();
         }
 
+        out.flush();
+        Metrics.mailboxScan(scanned);
 
         if (!existSuchMessage) {
-            CONFIG.getConsoleOutput().printf(Config.NO_MESSAGES);
+            session().getConsoleOutput().printf(Config.NO_MESSAGES);
         }
     }
 
-    // Helper function to find whether a user is a member in another user's
-    // broadcastlists, used by read messages all from to determine whether a
-    // message is sent to another user via (any) broadcastlists of this user .
-    private static boolean isMemberOfBroadcastLists(String nickname, User user) {
-        List<BroadcastList> broadcastLists = user.getBroadcastLists();
-        boolean result = false;
-        for (BroadcastList bl : broadcastLists) {
-            if (user.isMemberOfBroadcastList(nickname, bl.getNickname())) {
-                result = true;
+    /**
+     * Displays one page of the messages that read messages all (nickname
+     * null) or read messages all from would display, and marks them as read.
+     * If there are more, prints the cursor to pass to get the next page with
+     * NEXT_PAGE. Only the messages of the page are looked at, however far
+     * into the mailbox it is. Says NO_MESSAGES if the page is empty
+     *
+     * @param nickname the user or broadcast list to read the messages of, null
+     * for all the messages
+     * @param limit the largest number of messages to display, as typed
+     * @param cursor the cursor printed after the last page, empty for the
+     * first page
+     * @throws WhatsAppException with INVALID_LIMIT if the limit is not a
+     * positive number, with INVALID_CURSOR if the cursor does not parse or
+     * points at no message of the mailbox of the user
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text of a message to display was lost
+     */
+    public static void readMessagePage(String nickname, String limit, String cursor)
+            throws WhatsAppException, WhatsAppRuntimeException
+    {
+        int pageSize;
+        try
+        {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException ex)
+        {
+            pageSize = 0;
+        }
+        if (pageSize <= 0)
+        {
+            throw new WhatsAppException(String.format(MessageCursor.INVALID_LIMIT, limit));
+        }
+        MessageCursor after = cursor.isEmpty() ? null : MessageCursor.parse(cursor);
+
+        User currUser = session().getCurrentUser();
+        List<String> counterparts = null;
+        if (nickname != null) {
+            counterparts = new ArrayList<String>();
+            counterparts.add(nickname);
+            for (BroadcastList bl : currUser.getBroadcastListsWithMember(nickname)) {
+                counterparts.add(bl.getNickname());
             }
         }
-        return result;
+        Mailbox.Page page = currUser.getMailbox().getPage(counterparts, after, pageSize);
+        if (page == null) {
+            throw new WhatsAppException(String.format(MessageCursor.INVALID_CURSOR, cursor));
+        }
+
+        OutputBuffer out = new OutputBuffer(session().getConsoleOutput());
+        for (Message message : page.getMessages()) {
+            message.setRead(true);
+            printMessage(out, message);
+        }
+        out.flush();
+        Metrics.mailboxScan(page.getMessages().size());
+
+        if (page.getMessages().isEmpty()) {
+            session().getConsoleOutput().printf(Config.NO_MESSAGES);
+        } else if (page.getNext() != null) {
+            session().getConsoleOutput().printf(MessageCursor.NEXT_PAGE, page.getNext());
+        } else if (nickname == null) {
+            // the whole mailbox has been read by now
+            currUser.getMailbox().pruneUnread();
+        }
     }
 
-    private static void printMessage(Message message) {
-        CONFIG.getConsoleOutput().printf(Config.MESSAGE_FORMAT, message.getFromNickname(), message.getToNickname(), message.getMessage(), message.getSentTime());
+    private static void printMessage(OutputBuffer out, Message message) throws WhatsAppRuntimeException {
+        out.appendMessage(message);
     }
 
 
@@ -226,27 +357,17 @@ public class CommandProcessor
     public static void search(String word, boolean searchByFirstName)
     {
         //TODO
-        User currUser = CONFIG.getCurrentUser();
-        List<User> allUsers = CONFIG.getAllUsers();
+        User currUser = session().getCurrentUser();
+        OutputBuffer out = new OutputBuffer(session().getConsoleOutput());
         boolean searchResultFound = false;
-        for (User user : allUsers) {
-            // search by first name
-            if (searchByFirstName) {
-                if (user.getFirstName().contains(word)) {
-                    CONFIG.getConsoleOutput().printf(Config.USER_DISPLAY_FOR_SEARCH, user.getLastName(), user.getFirstName(), user.getNickname(), currUser.isFriend(user.getNickname()) ? "yes" : "no");
-                    searchResultFound = true;
-                }
-            // search by last name
-            } else {
-                if (user.getLastName().contains(word)) {
-                    CONFIG.getConsoleOutput().printf(Config.USER_DISPLAY_FOR_SEARCH, user.getLastName(), user.getFirstName(), user.getNickname(), currUser.isFriend(user.getNickname()) ? "yes" : "no");
-                    searchResultFound = true;
-                }
-            }
+        for (User user : UserDirectory.getInstance().searchByName(word, searchByFirstName)) {
+            out.appendSearchResult(user, currUser.isFriend(user.getNickname()));
+            searchResultFound = true;
         }
+        out.flush();
 
         if (!searchResultFound) {
-            CONFIG.getConsoleOutput().printf(Config.NO_RESULTS_FOUND);
+            session().getConsoleOutput().printf(Config.NO_RESULTS_FOUND);
         }
     }
 
@@ -261,8 +382,10 @@ public class CommandProcessor
     public static void addFriend(String nickname) throws WhatsAppException
     {
        //TODO
-       CONFIG.getCurrentUser().addFriend(nickname);
-       CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_ADDED);
+       User currUser = session().getCurrentUser();
+       change(currUser, () -> currUser.addFriend(nickname),
+               WriteAheadLog.Operation.ADD_FRIEND, nickname, null, 0);
+       session().getConsoleOutput().printf(Config.SUCCESSFULLY_ADDED);
     }
 
     /**
@@ -276,8 +399,10 @@ public class CommandProcessor
      */
     public static void removeFriend(String nickname) throws WhatsAppException
     {
-        CONFIG.getCurrentUser().removeFriend(nickname);
-        CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
+        User currUser = session().getCurrentUser();
+        change(currUser, () -> currUser.removeFriend(nickname),
+                WriteAheadLog.Operation.REMOVE_FRIEND, nickname, null, 0);
+        session().getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
     }
 
     /**
@@ -295,29 +420,28 @@ public class CommandProcessor
     public static void addFriendToBcast(String friendNickname,
             String bcastNickname) throws WhatsAppException
     {
-        if (friendNickname.equals(CONFIG.getCurrentUser().getNickname()))
+        if (friendNickname.equals(session().getCurrentUser().getNickname()))
         {
             throw new WhatsAppException(Config.CANT_ADD_YOURSELF_TO_BCAST);
         }
-        if (!CONFIG.getCurrentUser().isFriend(friendNickname))
+        if (!session().getCurrentUser().isFriend(friendNickname))
         {
             throw new WhatsAppException(Config.NOT_A_FRIEND);
         }
-        if (!CONFIG.getCurrentUser().isBroadcastList(bcastNickname))
+        if (!session().getCurrentUser().isBroadcastList(bcastNickname))
         {
             throw new WhatsAppException(String.
                     format(Config.BCAST_LIST_DOES_NOT_EXIST, bcastNickname));
         }
-        if (CONFIG.getCurrentUser().
+        if (session().getCurrentUser().
                 isMemberOfBroadcastList(friendNickname, bcastNickname))
         {
             throw new WhatsAppException(Config.ALREADY_PRESENT);
         }
-        Helper.
-                getBroadcastListFromNickname(CONFIG.getCurrentUser().
-                        getBroadcastLists(), bcastNickname).getMembers().
-                add(friendNickname);
-        CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_ADDED);
+        User currUser = session().getCurrentUser();
+        change(currUser, () -> currUser.addMemberToBroadcastList(friendNickname, bcastNickname),
+                WriteAheadLog.Operation.ADD_TO_BCAST, friendNickname, bcastNickname, 0);
+        session().getConsoleOutput().printf(Config.SUCCESSFULLY_ADDED);
     }
 
     /**
@@ -336,7 +460,7 @@ public class CommandProcessor
             String bcastNickname) throws WhatsAppException
     {
         //TODO
-        User currUser = CONFIG.getCurrentUser();
+        User currUser = session().getCurrentUser();
         if (!currUser.isFriend(friendNickname)) {
             throw new WhatsAppException(Config.NOT_A_FRIEND);
         }
@@ -347,11 +471,10 @@ public class CommandProcessor
         if (!currUser.isMemberOfBroadcastList(friendNickname, bcastNickname)) {
             throw new WhatsAppException(Config.NOT_PART_OF_BCAST_LIST);
         }
-        Helper.
-                getBroadcastListFromNickname(currUser.
-                        getBroadcastLists(), bcastNickname).getMembers().
-                remove(friendNickname);
-        CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
+        change(currUser, () -> currUser.
+                removeMemberFromBroadcastList(friendNickname, bcastNickname),
+                WriteAheadLog.Operation.REMOVE_FROM_BCAST, friendNickname, bcastNickname, 0);
+        session().getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
     }
 
     /**
@@ -367,13 +490,197 @@ public class CommandProcessor
     public static void removeBroadcastList(String nickname) throws WhatsAppException
     {
         //TODO
-        User currUser = CONFIG.getCurrentUser();
+        User currUser = session().getCurrentUser();
         if (!currUser.isBroadcastList(nickname)) {
             throw new WhatsAppException(String.
                     format(Config.BCAST_LIST_DOES_NOT_EXIST, nickname));
         }
-        currUser.removeBroadcastList(nickname);
-        CONFIG.getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
+        change(currUser, () -> currUser.removeBroadcastList(nickname),
+                WriteAheadLog.Operation.REMOVE_BCAST, nickname, null, 0);
+        session().getConsoleOutput().printf(Config.SUCCESSFULLY_REMOVED);
+    }
+
+    /**
+     * Removes the account of the logged in user and logs it out. Says
+     * ACCOUNT_REMOVED when done. Every user that had it as a friend or in a
+     * broadcast list loses it there, see UserDirectory.removeAccount. This
+     * changes other users too, so other changing commands wait while it runs,
+     * as they do for a checkpoint, and the messages on their way are
+     * delivered first. Other sessions logged in as the user are logged out
+     * with ACCOUNT_GONE by the next change they try
+     *
+     * @throws WhatsAppException with ERROR_IO if the log failed, then nothing
+     * is removed, or with ACCOUNT_GONE if another session removed it already
+     */
+    public static void removeAccount() throws WhatsAppException
+    {
+        User currUser = session().getCurrentUser();
+        long ticket;
+        Snapshot.CHANGES.writeLock().lock();
+        try
+        {
+            FanOutExecutor fanOut = FanOutExecutor.getInstance();
+            if (fanOut != null)
+            {
+                fanOut.drain();
+            }
+            synchronized (currUser)
+            {
+                WriteAheadLog.checkWritable();
+                checkNotRemoved(currUser);
+                UserDirectory.getInstance().removeAccount(currUser);
+                ticket = WriteAheadLog.append(WriteAheadLog.Operation.REMOVE_ACCOUNT,
+                        currUser.getNickname(), currUser.getNickname(), null, 0);
+            }
+        } finally
+        {
+            Snapshot.CHANGES.writeLock().unlock();
+        }
+        session().setCurrentUser(null);
+        WriteAheadLog.sync(ticket);
+        session().getConsoleOutput().printf(UserDirectory.ACCOUNT_REMOVED);
+    }
+
+    /**
+     * Displays the users that follow the logged in user: those that have it
+     * as a friend, then those that only have it in a broadcast list, in the
+     * USER_DISPLAY_FOR_SEARCH format. Says NO_RESULTS_FOUND if there are none
+     */
+    public static void followers()
+    {
+        User currUser = session().getCurrentUser();
+        InboundIndex inbound = UserDirectory.getInstance().getInboundIndex();
+        OutputBuffer out = new OutputBuffer(session().getConsoleOutput());
+        boolean followerFound = false;
+        for (User user : inbound.getFriendOf(currUser.getNickname())) {
+            out.appendSearchResult(user, currUser.isFriend(user.getNickname()));
+            followerFound = true;
+        }
+        for (User user : inbound.getListedBy(currUser.getNickname())) {
+            if (!user.isFriend(currUser.getNickname())) {
+                out.appendSearchResult(user, currUser.isFriend(user.getNickname()));
+                followerFound = true;
+            }
+        }
+        out.flush();
+        if (!followerFound) {
+            session().getConsoleOutput().printf(Config.NO_RESULTS_FOUND);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the state to a file. Says CHECKPOINT_WRITTEN when
+     * done. Starting the program with the snapshot instead of the
+     * pre-population file brings back the state as it was now, plus whatever
+     * the write-ahead log has from later. When message texts are kept in the
+     * MessageArena, it is compacted too. Where a snapshot may be written is
+     * up to Snapshot.checkpointTarget
+     *
+     * @param filename the path of the snapshot
+     * @throws WhatsAppException with ERROR_IO if the snapshot cannot be
+     * written, or with the message of Snapshot.checkpointTarget if it may not
+     * be written there
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text of a message was lost
+     */
+    public static void checkpoint(String filename) throws WhatsAppException, WhatsAppRuntimeException
+    {
+        Path target = Snapshot.checkpointTarget(filename, session());
+        try
+        {
+            Snapshot.write(target.toString());
+            MessageArena arena = MessageArena.getInstance();
+            if (arena != null)
+            {
+                arena.compact();
+            }
+        } catch (IOException | UncheckedIOException ex)
+        {
+            throw new WhatsAppException(Config.ERROR_IO);
+        }
+        session().getConsoleOutput().printf(Snapshot.CHECKPOINT_WRITTEN, filename);
+    }
+
+    /**
+     * Prints the metrics in the Prometheus text format, for stats export:
+     *
+     * @throws WhatsAppException with ERROR_IO if they cannot be printed
+     */
+    public static void exportStats() throws WhatsAppException
+    {
+        StringBuilder out = new StringBuilder();
+        try
+        {
+            Metrics.export(out);
+        } catch (IOException ex)
+        {
+            throw new WhatsAppException(Config.ERROR_IO);
+        }
+        session().getConsoleOutput().print(out);
+    }
+
+    // a change made by a command
+    private interface Change<E extends Exception>
+    {
+
+        void apply() throws WhatsAppException, E;
+    }
+
+    // held while a message is delivered and logged, so that the messages
+    // reach every mailbox, or the queues of the FanOutExecutor, in the order
+    // they are logged and replaying the log fills the mailboxes the same way
+    private static final Object DELIVERIES = new Object();
+
+    // makes a change for a user and logs it as one step: under the lock of
+    // the user, so that the changes of a user are logged in order, and under
+    // the shared checkpoint lock, so that a checkpoint sees all or none of it.
+    // Messages are delivered one at a time, see DELIVERIES. Nothing is
+    // changed once the log failed, or for a user whose account was removed
+    // by another session. Then waits until the log has it on disk
+    private static <E extends Exception> void change(User user, Change<E> change,
+            WriteAheadLog.Operation operation, String first, String second,
+            long time) throws WhatsAppException, E
+    {
+        long ticket;
+        Snapshot.CHANGES.readLock().lock();
+        try
+        {
+            synchronized (user)
+            {
+                WriteAheadLog.checkWritable();
+                checkNotRemoved(user);
+                if (operation == WriteAheadLog.Operation.SEND_MESSAGE
+                        && WriteAheadLog.position() != WriteAheadLog.NO_LOG)
+                {
+                    synchronized (DELIVERIES)
+                    {
+                        change.apply();
+                        ticket = WriteAheadLog.append(operation, user.getNickname(), first,
+                                second, time);
+                    }
+                } else
+                {
+                    change.apply();
+                    ticket = WriteAheadLog.append(operation, user.getNickname(), first,
+                            second, time);
+                }
+            }
+        } finally
+        {
+            Snapshot.CHANGES.readLock().unlock();
+        }
+        WriteAheadLog.sync(ticket);
+    }
+
+    // logs out a session whose user was removed by another session, so that
+    // it cannot point anything at the removed user again
+    private static void checkNotRemoved(User user) throws WhatsAppException
+    {
+        if (!UserDirectory.getInstance().contains(user))
+        {
+            session().setCurrentUser(null);
+            throw new WhatsAppException(UserDirectory.ACCOUNT_GONE);
+        }
     }
 
     /**
@@ -388,103 +695,85 @@ public class CommandProcessor
      */
     public static void processCommand(String command)
     {
+        long start = System.nanoTime();
+        CommandParser.Command parsed = CommandParser.parse(command);
+        CommandParser.Type type = parsed.getType();
+        boolean success = false;
         try
         {
-            switch (command.split(":")[0])
+            switch (type)
             {
-                case "logout":
+                case LOGOUT:
                     doLogout();
                     break;
-                case "send message":
-                    String nickname = command.
-                            substring(command.indexOf(":") + 1, command.
-                                    indexOf(",")).trim();
-                    String message = command.
-                            substring(command.indexOf("\"") + 1, command.trim().
-                                    length());
-                    sendMessage(nickname, message);
+                case SEND_MESSAGE:
+                    sendMessage(parsed.getFirst(), parsed.getSecond());
                     break;
-                case "read messages unread from":
-                    nickname = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    readMessage(nickname, true);
+                case READ_UNREAD_FROM:
+                    readMessage(parsed.getFirst(), true);
                     break;
-                case "read messages all from":
-                    nickname = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    readMessage(nickname, false);
+                case READ_ALL_FROM:
+                    readMessage(parsed.getFirst(), false);
                     break;
-                case "read messages all":
+                case READ_ALL:
                     readMessage(null, false);
                     break;
-                case "read messages unread":
+                case READ_UNREAD:
                     readMessage(null, true);
                     break;
-                case "search fn":
-                    String word = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    search(word, true);
+                case READ_ALL_PAGE:
+                    readMessagePage(null, parsed.getFirst(), parsed.getSecond());
+                    break;
+                case READ_ALL_FROM_PAGE:
+                    readMessagePage(parsed.getFirst(), parsed.getSecond(), parsed.getThird());
                     break;
-                case "search ln":
-                    word = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    search(word, false);
+                case SEARCH_FN:
+                    search(parsed.getFirst(), true);
                     break;
-                case "add friend":
-                    nickname = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    addFriend(nickname);
+                case SEARCH_LN:
+                    search(parsed.getFirst(), false);
                     break;
-                case "remove friend":
-                    nickname = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length()).trim();
-                    removeFriend(nickname);
+                case ADD_FRIEND:
+                    addFriend(parsed.getFirst());
                     break;
-                case "add to bcast":
-                    String nickname0 = command.
-                            substring(command.indexOf(":") + 1, command.
-                                    indexOf(",")).
-                            trim();
-                    String nickname1 = command.
-                            substring(command.indexOf(",") + 1, command.trim().
-                                    length()).
-                            trim();
-                    addFriendToBcast(nickname0, nickname1);
+                case REMOVE_FRIEND:
+                    removeFriend(parsed.getFirst());
                     break;
-                case "remove from bcast":
-                    nickname0 = command.
-                            substring(command.indexOf(":") + 1, command.
-                                    indexOf(",")).
-                            trim();
-                    nickname1 = command.
-                            substring(command.indexOf(",") + 1, command.trim().
-                                    length()).
-                            trim();
-                    removeFriendFromBcast(nickname0, nickname1);
+                case ADD_TO_BCAST:
+                    addFriendToBcast(parsed.getFirst(), parsed.getSecond());
                     break;
-                case "remove bcast":
-                    nickname = command.
-                            substring(command.indexOf(":") + 1, command.trim().
-                                    length());
-                    removeBroadcastList(nickname);
+                case REMOVE_FROM_BCAST:
+                    removeFriendFromBcast(parsed.getFirst(), parsed.getSecond());
+                    break;
+                case REMOVE_BCAST:
+                    removeBroadcastList(parsed.getFirst());
+                    break;
+                case REMOVE_ACCOUNT:
+                    removeAccount();
+                    break;
+                case FOLLOWERS:
+                    followers();
+                    break;
+                case CHECKPOINT:
+                    checkpoint(parsed.getFirst());
+                    break;
+                case STATS:
+                    Metrics.print(session().getConsoleOutput());
+                    break;
+                case STATS_EXPORT:
+                    exportStats();
                     break;
                 default:
-                    CONFIG.getConsoleOutput().
+                    session().getConsoleOutput().
                             printf(Config.INVALID_COMMAND);
             }
-        } catch (StringIndexOutOfBoundsException ex)
-        {
-            CONFIG.getConsoleOutput().
-                    printf(Config.INVALID_COMMAND);
+            success = type != CommandParser.Type.INVALID;
         } catch (WhatsAppException | WhatsAppRuntimeException ex)
         {
-            CONFIG.getConsoleOutput().printf(ex.getMessage());
+            session().getConsoleOutput().printf(ex.getMessage());
+        } finally
+        {
+            Metrics.command(type, System.nanoTime() - start, success);
         }
     }
 
@@ -0,0 +1,221 @@
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A map that remembers the order its keys were added in and that can be
+ * read by any number of threads while another thread changes it. Lookups are
+ * hash lookups, adds and removes are O(log n) and iterating goes through the
+ * keys in the order they were added. Iterators never throw a
+ * ConcurrentModificationException: they see every entry that was there when
+ * they started and was not removed since, and may or may not see entries
+ * added after that.
+ *
+ * Changes are serialized on the map itself, readers never take a lock. This
+ * is used for the friends and broadcast lists of a user and the members of a
+ * broadcast list, which are read by every message sent while their owner may
+ * be editing them.
+ *
+ * @author Duanyang Jing
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ConcurrentOrderedMap<K, V>
+{
+
+    private final Map<K, Node<K, V>> nodes = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Node<K, V>> order = new ConcurrentSkipListMap<>();
+    private long nextSequence = 0;
+
+    private static class Node<K, V>
+    {
+
+        private final long sequence;
+        private final K key;
+        private final V value;
+
+        private Node(long sequence, K key, V value)
+        {
+            this.sequence = sequence;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Adds a key at the end of the map unless it is already there
+     *
+     * @param key the key to add, not null
+     * @param value the value of the key, not null
+     * @return true if the key was added, false if it was already there
+     */
+    public synchronized boolean putIfAbsent(K key, V value)
+    {
+        if (nodes.containsKey(key))
+        {
+            return false;
+        }
+        Node<K, V> node = new Node<>(nextSequence++, key, value);
+        order.put(node.sequence, node);
+        nodes.put(key, node);
+        return true;
+    }
+
+    /**
+     * Removes a key
+     *
+     * @param key the key to remove
+     * @return the value the key had or null if it was not there
+     */
+    public synchronized V remove(K key)
+    {
+        Node<K, V> node = nodes.remove(key);
+        if (node == null)
+        {
+            return null;
+        }
+        order.remove(node.sequence);
+        return node.value;
+    }
+
+    /**
+     * Removes every key
+     */
+    public synchronized void clear()
+    {
+        nodes.clear();
+        order.clear();
+    }
+
+    /**
+     * Looks up the value of a key
+     *
+     * @param key the key to look up
+     * @return the value of the key or null if it is not there
+     */
+    public V get(K key)
+    {
+        Node<K, V> node = key == null ? null : nodes.get(key);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Checks whether a key is there
+     *
+     * @param key the key to look for
+     * @return true if the key is there
+     */
+    public boolean containsKey(K key)
+    {
+        return key != null && nodes.containsKey(key);
+    }
+
+    /**
+     * The number of keys
+     *
+     * @return the number of keys
+     */
+    public int size()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * A read only view of the keys in the order they were added
+     *
+     * @return the keys
+     */
+    public Set<K> keySet()
+    {
+        return new AbstractSet<K>()
+        {
+            @Override
+            public Iterator<K> iterator()
+            {
+                Iterator<Node<K, V>> it = order.values().iterator();
+                return new Iterator<K>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public K next()
+                    {
+                        return it.next().key;
+                    }
+                };
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean contains(Object o)
+            {
+                return containsKey((K) o);
+            }
+
+            @Override
+            public int size()
+            {
+                return ConcurrentOrderedMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * A read only view of the values in the order their keys were added
+     *
+     * @return the values
+     */
+    public Collection<V> values()
+    {
+        return new AbstractCollection<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                Iterator<Node<K, V>> it = order.values().iterator();
+                return new Iterator<V>()
+                {
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public V next()
+                    {
+                        return it.next().value;
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return ConcurrentOrderedMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * A copy of the values in the order their keys were added
+     *
+     * @return a new list holding the values
+     */
+    public List<V> valuesSnapshot()
+    {
+        return new ArrayList<>(values());
+    }
+}
@@ -0,0 +1,255 @@
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Delivers sent messages to the mailboxes of their receivers on a pool of
+ * worker threads, so that sending to a big broadcast list does not keep the
+ * sender waiting while every member gets a copy. It is off unless the
+ * whatsapp.fanout system property gives the number of workers. When it is
+ * on, sendMessage puts the copy of the sender into its mailbox, hands the
+ * delivery to the workers, logs the send and says it succeeded. The copies
+ * of the receivers show up in their mailboxes a little later.
+ *
+ * Every receiver belongs to one worker, picked by its nickname, and every
+ * worker delivers from a queue of its own in order. Deliveries are queued
+ * for all workers at once under one lock, in batches of at most BATCH_SIZE
+ * receivers. So every receiver gets its messages in the order they were
+ * sent. Messages to a friend go the same way as broadcasts when this is on,
+ * so they cannot overtake a broadcast that was sent before them.
+ *
+ * The queue of every worker holds at most whatsapp.fanout.queue batches
+ * (1024 by default). A sender that finds a queue full waits until the
+ * worker has taken a batch off it, so a flood of broadcasts slows the
+ * senders down instead of filling the heap.
+ *
+ * A receiver that cannot be delivered to, because its copy cannot be made
+ * or its mailbox fails, is skipped and counted in the metrics, and the
+ * worker goes on with the next one.
+ *
+ * drain waits until everything queued has been delivered. A checkpoint and
+ * the compaction of the MessageArena drain while changing commands are held
+ * off, so they never see a message that is on its way.
+ *
+ * @author Duanyang Jing
+ */
+public class FanOutExecutor
+{
+
+    /**
+     * The system property with the number of workers, which turns delivery
+     * on the workers on
+     */
+    public static final String PROPERTY = "whatsapp.fanout";
+    /**
+     * The system property with the most batches a worker has queued before
+     * senders wait
+     */
+    public static final String QUEUE_PROPERTY = "whatsapp.fanout.queue";
+    /**
+     * The most receivers in a batch
+     */
+    public static final int BATCH_SIZE = 256;
+
+    private static final FanOutExecutor INSTANCE = open();
+
+    private final List<BlockingQueue<Batch>> queues;
+    // held while a message is queued for all its workers, which keeps the
+    // order of the messages the same in every queue. Not this, which the
+    // workers need to finish a batch while a sender waits for room
+    private final Object submitting = new Object();
+    // batches queued and not delivered yet, guarded by this
+    private long pending;
+
+    // a message for some of the receivers of one worker
+    private static final class Batch
+    {
+
+        private final MessageEnvelope envelope;
+        private final String[] receivers;
+        private int size;
+
+        private Batch(MessageEnvelope envelope, int capacity)
+        {
+            this.envelope = envelope;
+            this.receivers = new String[capacity];
+        }
+    }
+
+    private FanOutExecutor(int workers, int capacity)
+    {
+        queues = new ArrayList<>(workers);
+        for (int i = 0; i < workers; ++i)
+        {
+            BlockingQueue<Batch> queue = new LinkedBlockingQueue<>(capacity);
+            queues.add(queue);
+            Thread worker = new Thread(() -> work(queue), "fan-out-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private static FanOutExecutor open()
+    {
+        int workers = Integer.getInteger(PROPERTY, 0);
+        return workers > 0
+                ? new FanOutExecutor(workers, Math.max(1, Integer.getInteger(QUEUE_PROPERTY, 1024)))
+                : null;
+    }
+
+    /**
+     * Returns the executor
+     *
+     * @return the executor, or null if messages are delivered by the thread
+     * that sends them
+     */
+    public static FanOutExecutor getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues the delivery of a message to its receivers. The receivers are
+     * copied, so the collection may change once this returns. Waits while
+     * the queue of a worker is full. An interrupt does not stop the wait, it
+     * is kept for the caller to see
+     *
+     * @param envelope the sender, time and text of the message
+     * @param receivers the nicknames of the users to deliver it to
+     * @return the number of receivers
+     */
+    public int submit(MessageEnvelope envelope, Collection<String> receivers)
+    {
+        synchronized (submitting)
+        {
+            Batch[] batches = new Batch[queues.size()];
+            int count = 0;
+            for (String receiver : receivers)
+            {
+                int worker = (receiver.hashCode() & Integer.MAX_VALUE) % queues.size();
+                Batch batch = batches[worker];
+                if (batch == null)
+                {
+                    batch = new Batch(envelope, Math.min(BATCH_SIZE, receivers.size() - count));
+                    batches[worker] = batch;
+                }
+                batch.receivers[batch.size++] = receiver;
+                if (batch.size == batch.receivers.length)
+                {
+                    enqueue(worker, batch);
+                    batches[worker] = null;
+                }
+                ++count;
+            }
+            for (int worker = 0; worker < batches.length; ++worker)
+            {
+                if (batches[worker] != null)
+                {
+                    enqueue(worker, batches[worker]);
+                }
+            }
+            return count;
+        }
+    }
+
+    private void enqueue(int worker, Batch batch)
+    {
+        synchronized (this)
+        {
+            ++pending;
+        }
+        boolean interrupted = false;
+        while (true)
+        {
+            try
+            {
+                queues.get(worker).put(batch);
+                break;
+            } catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until every message queued so far has been delivered. Messages
+     * queued while this waits are waited for too. An interrupt does not stop
+     * the wait, it is kept for the caller to see
+     */
+    public synchronized void drain()
+    {
+        boolean interrupted = false;
+        while (pending > 0)
+        {
+            try
+            {
+                wait();
+            } catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work(BlockingQueue<Batch> queue)
+    {
+        while (true)
+        {
+            Batch batch;
+            try
+            {
+                batch = queue.take();
+            } catch (InterruptedException ex)
+            {
+                return;
+            }
+            try
+            {
+                deliver(batch);
+            } finally
+            {
+                synchronized (this)
+                {
+                    if (--pending == 0)
+                    {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    // a receiver that fails is skipped, so that the worker lives on and the
+    // batches queued after this one are still delivered
+    private static void deliver(Batch batch)
+    {
+        UserDirectory users = UserDirectory.getInstance();
+        for (int i = 0; i < batch.size; ++i)
+        {
+            String receiver = batch.receivers[i];
+            try
+            {
+                User toUser = Helper.getUserFromNickname(users, receiver);
+                if (toUser != null)
+                {
+                    toUser.getMessages().add(new Message(batch.envelope, receiver, null, false));
+                }
+            } catch (WhatsAppRuntimeException | RuntimeException ex)
+            {
+                Metrics.failedDelivery();
+            }
+        }
+    }
+}
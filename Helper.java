@@ -1,12 +1,8 @@
-import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * A few helper static methods
@@ -28,6 +24,9 @@ public class Helper
     public static User getUserFromNickname(List<User> users, String nickname)
     {
         //TODO
+        if (users instanceof UserDirectory) {
+            return ((UserDirectory) users).getUser(nickname);
+        }
         Iterator<User> itr = users.iterator();
         User currUser = null;
         while (itr.hasNext()) {
@@ -70,18 +69,12 @@ public class Helper
     public static boolean isExistingGlobalContact(String nickname)
     {
         //TODO
-        List<User> allUsers = Config.getInstance().getAllUsers();
-        Iterator<User> itr = allUsers.iterator();
-        User currUser = null;
-        while (itr.hasNext()) {
-            currUser = itr.next();
-            if (currUser.getNickname().equals(nickname)) return true;
-        }
-        return false;
+        return UserDirectory.getInstance().containsNickname(nickname);
     }
 
     /**
-     * Populate data from the file with the given path
+     * Populate data from the file with the given path. The file can be a
+     * pre-population file or a snapshot written by the checkpoint command
      *
      * @param filename the path to the input file
      * @throws FileNotFoundException this is thrown if the file is not found
@@ -96,82 +89,16 @@ public class Helper
      */
     public static void populateData(String filename) throws FileNotFoundException, IOException, WhatsAppRuntimeException, ParseException
     {
-        Scanner scanner = new Scanner(new File(filename));
-        while (scanner.hasNextLine())
+        Metrics.clearPhases();
+        long start = System.nanoTime();
+        if (Snapshot.isSnapshot(filename))
         {
-            String line = scanner.nextLine();
-            String[] parts = line.split(",");
-            switch (parts[0])
-            {
-                case "user":
-                    User user = new User(parts[1], parts[2], parts[3], parts[4], new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
-                    Config.getInstance().getAllUsers().add(user);
-                    break;
-                case "flist":
-                    user = getUserFromNickname(Config.getInstance().
-                            getAllUsers(), parts[1]);
-                    for (int i = 2; i < parts.length; ++i)
-                    {
-                        user.getFriends().add(getUserFromNickname(Config.
-                                getInstance().getAllUsers(), parts[i]));
-                    }
-                    break;
-                case "bcast":
-                    user = getUserFromNickname(Config.getInstance().
-                            getAllUsers(), parts[1]);
-                    BroadcastList newList = new BroadcastList(parts[3], new ArrayList<>());
-                    for (int i = 4; i < parts.length; ++i)
-                    {
-                        newList.getMembers().add(parts[i]);
-                    }
-                    user.getBroadcastLists().add(newList);
-                    break;
-                case "message":
-                    SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy HH:mm:ss");
-                    if ((getUserFromNickname(Config.
-                            getInstance().getAllUsers(), parts[1])).
-                            isBroadcastList(parts[2]))
-                    {
-                        Message sentMessage = new Message(parts[1], null, parts[2], sdf.
-                                parse(parts[3]), parts[4].
-                                substring(1, parts[4].length() - 1), true);
-                        getUserFromNickname(Config.getInstance().getAllUsers(), parts[1]).
-                                getMessages().add(sentMessage);
-                        Iterator<String> memberIterator = getBroadcastListFromNickname(getUserFromNickname(Config.
-                                getInstance().getAllUsers(), parts[1]).
-                                getBroadcastLists(), parts[2]).getMembers().
-                                iterator();
-                        for (int i = 5; i < parts.length; ++i)
-                        {
-                            String member = memberIterator.next();
-                            Message receivedMessage = new Message(parts[1], member, null, sdf.
-                                    parse(parts[3]), parts[4].
-                                    substring(1, parts[4].length() - 1), parts[i].
-                                    equals("read"));
-                            getUserFromNickname(Config.getInstance().
-                                    getAllUsers(), member).
-                                    getMessages().add(receivedMessage);
-                        }
-                    } else
-                    {
-                        Message sentMessage = new Message(parts[1], parts[2], null, sdf.
-                                parse(parts[3]), parts[4].
-                                substring(1, parts[4].length() - 1), true);
-                        getUserFromNickname(Config.getInstance().getAllUsers(), parts[1]).
-                                getMessages().add(sentMessage);
-                        Message receivedMessage = new Message(parts[1], parts[2], null, sdf.
-                                parse(parts[3]), parts[4].
-                                substring(1, parts[4].length() - 1), parts[5].
-                                equals("read"));
-
-                        getUserFromNickname(Config.getInstance().getAllUsers(), parts[2]).
-                                getMessages().add(receivedMessage);
-                    }
-                    break;
-                default:
-                    throw new WhatsAppRuntimeException();
-            }
+            Snapshot.load(filename);
+        } else
+        {
+            PrepopulationLoader.load(filename);
         }
+        Metrics.phase("populateData", System.nanoTime() - start);
     }
 
 }
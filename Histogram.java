@@ -0,0 +1,143 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non negative values that many threads can record into at
+ * once, for latencies and sizes that are recorded all the time. Values below
+ * 16 get a bucket each, larger ones share buckets eight to a power of two,
+ * so a percentile is off by at most an eighth of the value. Recording is one
+ * atomic increment of a bucket plus keeping the sum and the maximum, and
+ * nothing is allocated.
+ *
+ * Unlike Latencies, which keeps every sample for exact percentiles, the
+ * memory taken does not grow with the number of values.
+ *
+ * @author Duanyang Jing
+ */
+public class Histogram
+{
+
+    // 16 exact buckets, then 8 for each power of two from 2^4 to 2^62
+    private static final int BUCKETS = 16 + (63 - 4) * 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0
+     *
+     * @param value the value
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+        {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value))
+        {
+            seen = max.get();
+        }
+    }
+
+    /**
+     * The number of values recorded
+     *
+     * @return the number of values
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * The sum of the values recorded
+     *
+     * @return the sum
+     */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /**
+     * The largest value recorded
+     *
+     * @return the maximum, 0 if nothing was recorded
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * A percentile of the values recorded, as the middle of the bucket the
+     * nearest rank falls in. Values recorded while this runs may or may not
+     * be counted
+     *
+     * @param p the percentile, from 0 to 100
+     * @return the percentile, 0 if nothing was recorded
+     */
+    public long percentile(double p)
+    {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+        {
+            seen += snapshot[i];
+            if (seen >= rank)
+            {
+                long low = lowest(i);
+                long high = lowest(i + 1) - 1;
+                return Math.min(low + (high - low) / 2, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int bucket(long value)
+    {
+        if (value < 16)
+        {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - 3)) & 7;
+        return 16 + (exponent - 4) * 8 + sub;
+    }
+
+    // the smallest value that goes into a bucket
+    private static long lowest(int bucket)
+    {
+        if (bucket < 16)
+        {
+            return bucket;
+        }
+        if (bucket >= BUCKETS)
+        {
+            return Long.MAX_VALUE;
+        }
+        int exponent = (bucket - 16) / 8 + 4;
+        int sub = (bucket - 16) % 8;
+        return (long) (8 + sub) << (exponent - 3);
+    }
+}
@@ -0,0 +1,130 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The edges that point at a user, kept next to the edges that point away from
+ * it: for every nickname, the users that have it as a friend and the users
+ * that have it in at least one of their broadcast lists. Friendship is one
+ * way, so these cannot be found from the user itself without going through
+ * every user. With them, finding the followers of a user and removing a user
+ * from everyone that points at it take time in the number of those users.
+ *
+ * User keeps this up to date as its friends and the members of its lists
+ * change, the UserDirectory holds the one instance. The users of a nickname
+ * come out in the order they started pointing at it. Nicknames nobody points
+ * at take no room.
+ *
+ * @author Duanyang Jing
+ */
+public class InboundIndex
+{
+
+    // nickname -> who points at it, null once nobody does
+    private final Map<String, Edges> edges = new ConcurrentHashMap<>();
+
+    private static class Edges
+    {
+
+        private final ConcurrentOrderedMap<String, User> friendOf = new ConcurrentOrderedMap<>();
+        private final ConcurrentOrderedMap<String, User> listedBy = new ConcurrentOrderedMap<>();
+
+        private boolean isEmpty()
+        {
+            return friendOf.size() == 0 && listedBy.size() == 0;
+        }
+    }
+
+    /**
+     * Records that a user has another as a friend
+     *
+     * @param user the user
+     * @param friend the nickname of the friend
+     */
+    public void addFriend(User user, String friend)
+    {
+        edges.compute(friend, (key, in) -> {
+            in = in == null ? new Edges() : in;
+            in.friendOf.putIfAbsent(user.getNickname(), user);
+            return in;
+        });
+    }
+
+    /**
+     * Records that a user no longer has another as a friend
+     *
+     * @param user the user
+     * @param friend the nickname of the former friend
+     */
+    public void removeFriend(User user, String friend)
+    {
+        edges.computeIfPresent(friend, (key, in) -> {
+            in.friendOf.remove(user.getNickname());
+            return in.isEmpty() ? null : in;
+        });
+    }
+
+    /**
+     * Records that a user put a nickname in its first broadcast list
+     *
+     * @param owner the owner of the lists
+     * @param member the nickname of the member
+     */
+    public void addListing(User owner, String member)
+    {
+        edges.compute(member, (key, in) -> {
+            in = in == null ? new Edges() : in;
+            in.listedBy.putIfAbsent(owner.getNickname(), owner);
+            return in;
+        });
+    }
+
+    /**
+     * Records that a nickname left the last broadcast list of a user it was
+     * in
+     *
+     * @param owner the owner of the lists
+     * @param member the nickname of the former member
+     */
+    public void removeListing(User owner, String member)
+    {
+        edges.computeIfPresent(member, (key, in) -> {
+            in.listedBy.remove(owner.getNickname());
+            return in.isEmpty() ? null : in;
+        });
+    }
+
+    /**
+     * The users that have a user as a friend
+     *
+     * @param nickname the nickname of the user
+     * @return the users, in the order they added the friend
+     */
+    public List<User> getFriendOf(String nickname)
+    {
+        Edges in = edges.get(nickname);
+        return in == null ? new ArrayList<>() : in.friendOf.valuesSnapshot();
+    }
+
+    /**
+     * The users that have a user in at least one of their broadcast lists
+     *
+     * @param nickname the nickname of the user
+     * @return the users, in the order they first listed the user
+     */
+    public List<User> getListedBy(String nickname)
+    {
+        Edges in = edges.get(nickname);
+        return in == null ? new ArrayList<>() : in.listedBy.valuesSnapshot();
+    }
+
+    /**
+     * Forgets every edge
+     */
+    public void clear()
+    {
+        edges.clear();
+    }
+}
@@ -0,0 +1,86 @@
+
+import java.util.Arrays;
+
+/**
+ * The latencies of a series of timed operations, kept one sample per
+ * operation so that exact percentiles can be reported at the end of a run.
+ * Used by the batch runner, which times every command it runs. Not thread
+ * safe.
+ *
+ * @author Duanyang Jing
+ */
+public class Latencies
+{
+
+    private long[] samples = new long[64];
+    private int count;
+    private long total;
+    private boolean sorted = true;
+
+    /**
+     * Adds the latency of one operation
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void add(long nanos)
+    {
+        if (count == samples.length)
+        {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        total += nanos;
+        sorted = false;
+    }
+
+    /**
+     * The number of operations
+     *
+     * @return how many latencies were added
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * The sum of the latencies
+     *
+     * @return the sum of all the latencies in nanoseconds
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * The mean latency
+     *
+     * @return the mean in microseconds, 0 if there are no latencies
+     */
+    public double mean()
+    {
+        return count == 0 ? 0.0 : total / 1000.0 / count;
+    }
+
+    /**
+     * The nearest rank percentile of the latencies
+     *
+     * @param p the percentile, from 0 to 100
+     * @return the percentile in microseconds, 0 if there are no latencies
+     */
+    public double percentile(double p)
+    {
+        if (count == 0)
+        {
+            return 0.0;
+        }
+        if (!sorted)
+        {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int rank = (int) Math.ceil(p / 100 * count);
+        return samples[Math.max(0, rank - 1)] / 1000.0;
+    }
+}
@@ -0,0 +1,995 @@
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+/**
+ * The list of messages of a user, both sent and received. It behaves like a
+ * plain list of messages, but also keeps an index from every nickname a
+ * message involves (its sender, its receiver and the broadcast list it went
+ * to) to the positions of those messages in the list. This lets the read
+ * messages commands that are about one counterpart look at that conversation
+ * only instead of the whole mailbox. The owner of the mailbox is involved in
+ * nearly all of its messages, so messages are not filed under the owner, and
+ * a conversation with the owner is found by going through the whole mailbox.
+ *
+ * It also keeps a queue of the messages that were unread when they were
+ * added, so the unread messages can be read without going through the whole
+ * mailbox. Messages that are marked as read while still in the queue are
+ * skipped when the queue is drained.
+ *
+ * A mailbox can be appended to by many senders at once while its owner reads
+ * it. Changes are serialized on the mailbox, readers never take a lock:
+ * appends are published by bumping a volatile size after the message is in
+ * place, and anything that moves messages around builds a new copy of the
+ * storage and swaps it in. Iterators walk the messages that were there when
+ * they were created and never throw a ConcurrentModificationException.
+ *
+ * The index is built from the nicknames a message had when it was added, so
+ * do not change the nicknames of a message that is already in a mailbox or
+ * mark it unread again.
+ *
+ * When the MailboxArchive is on, only the newest messages are kept in memory.
+ * Once there are a page more than the hot window, the oldest page is written
+ * to the archive and dropped, unread messages and all. The page is written
+ * without holding the lock on the mailbox, so senders are not held up by the
+ * disk, and one thread at a time archives a mailbox. Positions do not change
+ * when messages are archived, and reading an archived position reads its
+ * page back through the cache of the archive. Reads that go through a whole
+ * mailbox or conversation do not fill the cache, so they do not push out the
+ * pages of the other readers. The index only keeps the numbers of the
+ * archived pages a counterpart has messages in, a page is looked through
+ * when its messages are read. The unread messages are found reading only the
+ * pages that still have some. Archived messages come back as copies whose
+ * read flag is kept with their page, see MailboxArchive.
+ *
+ * @author Duanyang Jing
+ */
+public class Mailbox extends AbstractList<Message> implements RandomAccess
+{
+
+    private static final MailboxArchive.Page[] NO_PAGES = new MailboxArchive.Page[0];
+
+    private volatile Storage storage = new Storage(new Message[16], 0,
+            new ConcurrentHashMap<>(), 0, NO_PAGES, 0);
+    // the messages in memory that were unread when they were added, in
+    // mailbox order. Archiving a page takes its messages off the front
+    private final Queue<Message> unread = new ConcurrentLinkedQueue<>();
+    // the nickname of the user the mailbox belongs to, null if unknown
+    private final String owner;
+    // the number of the archive file of this mailbox, 0 until it has one
+    private int file;
+    // whether a thread is archiving pages of this mailbox
+    private boolean archiving;
+
+    // the messages and their index. Slots below size never change, so readers
+    // can use whatever storage and size they saw without locking
+    private static class Storage
+    {
+
+        // the messages in memory, position archived + i in slot i
+        private final Message[] messages;
+        private volatile int size;
+        // counterpart nickname -> positions of its messages, ascending
+        private final Map<String, Positions> conversations;
+        // the positions below this are in the pages of the archive
+        private final int archived;
+        private final MailboxArchive.Page[] pages;
+        // the archive file the pages are in
+        private final int file;
+
+        private Storage(Message[] messages, int size, Map<String, Positions> conversations,
+                int archived, MailboxArchive.Page[] pages, int file)
+        {
+            this.messages = messages;
+            this.size = size;
+            this.conversations = conversations;
+            this.archived = archived;
+            this.pages = pages;
+            this.file = file;
+        }
+    }
+
+    // reads positions of one storage, keeping the last archived page it read.
+    // Pages it reads go into the cache of the archive only if keep is set
+    private static class Cursor
+    {
+
+        private final Storage storage;
+        private final boolean keep;
+        private int page = -1;
+        private Message[] messages;
+
+        private Cursor(Storage storage, boolean keep)
+        {
+            this.storage = storage;
+            this.keep = keep;
+        }
+
+        private Message get(int position)
+        {
+            if (position >= storage.archived)
+            {
+                return storage.messages[position - storage.archived];
+            }
+            int index = position / MailboxArchive.PAGE_SIZE;
+            int offset = position % MailboxArchive.PAGE_SIZE;
+            if (index != page)
+            {
+                page = index;
+                messages = MailboxArchive.getInstance().read(storage.file, storage.pages[page], keep);
+            }
+            return messages[offset];
+        }
+    }
+
+    // the positions of the messages of one counterpart, ascending: the
+    // numbers of the archived pages it has messages in, then the positions of
+    // its messages after them. The values can be read while being appended
+    // to. Archiving a page replaces the object, which never changes its pages
+    private static class Positions
+    {
+
+        private final int[] pages;
+        private volatile int[] values;
+        private volatile int size;
+
+        private Positions()
+        {
+            this(new int[0], new int[4], 0);
+        }
+
+        private Positions(int[] pages, int[] values, int size)
+        {
+            this.pages = pages;
+            this.values = values;
+            this.size = size;
+        }
+
+        private void add(int value)
+        {
+            int[] current = values;
+            if (size == current.length)
+            {
+                current = Arrays.copyOf(current, size * 2);
+                values = current;
+            }
+            current[size] = value;
+            size = size + 1;
+        }
+
+        // a copy with the positions in the page turned into its number
+        private Positions archive(int page)
+        {
+            int below = (page + 1) * MailboxArchive.PAGE_SIZE;
+            int[] current = values;
+            int count = size;
+            int moved = 0;
+            while (moved < count && current[moved] < below)
+            {
+                ++moved;
+            }
+            int[] archived = Arrays.copyOf(pages, pages.length + 1);
+            archived[pages.length] = page;
+            int[] rest = new int[Math.max(4, count - moved)];
+            System.arraycopy(current, moved, rest, 0, count - moved);
+            return new Positions(archived, rest, count - moved);
+        }
+    }
+
+    // goes through the positions of the messages of some counterparts in
+    // ascending order, from start up to end. The archived pages they have
+    // messages in are looked through one at a time, when they come next.
+    // With unreadOnly, only the archived messages that are still unread are
+    // looked at, the others are read. With scan, the counterparts include the
+    // owner, who has no positions of its own, and every message is looked at
+    private static class Walk
+    {
+
+        private final Storage storage;
+        private final Cursor cursor;
+        private final Collection<String> counterparts;
+        private final boolean unreadOnly;
+        private final boolean scan;
+        private final int start;
+        private final int end;
+        private final List<Positions> conversations = new ArrayList<>();
+        // the size of every conversation when the walk started, then the next
+        // page and the next value of each
+        private final int[] sizes;
+        private final int[] nextPage;
+        private final int[] next;
+        // the positions found in the page looked through last
+        private final int[] found = new int[MailboxArchive.PAGE_SIZE];
+        private int foundAt;
+        private int foundSize;
+        // the position scanned last
+        private int scanned;
+
+        private Walk(Storage storage, Cursor cursor, Collection<String> counterparts,
+                boolean unreadOnly, boolean scan, int start, int end)
+        {
+            this.storage = storage;
+            this.cursor = cursor;
+            this.counterparts = counterparts;
+            this.unreadOnly = unreadOnly;
+            this.scan = scan;
+            this.start = start;
+            this.end = end;
+            this.scanned = start - 1;
+            for (String counterpart : counterparts)
+            {
+                Positions conversation = storage.conversations.get(counterpart);
+                if (conversation != null)
+                {
+                    conversations.add(conversation);
+                }
+            }
+            sizes = new int[conversations.size()];
+            nextPage = new int[sizes.length];
+            next = new int[sizes.length];
+            for (int c = 0; c < sizes.length; ++c)
+            {
+                Positions conversation = conversations.get(c);
+                // the size first, the values are at least that long then
+                sizes[c] = conversation.size;
+                int page = Arrays.binarySearch(conversation.pages, start / MailboxArchive.PAGE_SIZE);
+                nextPage[c] = page >= 0 ? page : -page - 1;
+                int value = Arrays.binarySearch(conversation.values, 0, sizes[c], start);
+                next[c] = value >= 0 ? value : -value - 1;
+            }
+        }
+
+        // the next position, or end if there is none
+        private int next()
+        {
+            if (scan)
+            {
+                while (++scanned < end)
+                {
+                    Message message = look(scanned);
+                    if (message != null && involves(message, counterparts))
+                    {
+                        return scanned;
+                    }
+                }
+                return end;
+            }
+            while (true)
+            {
+                int value = end;
+                for (int c = 0; c < sizes.length; ++c)
+                {
+                    if (next[c] < sizes[c])
+                    {
+                        value = Math.min(value, conversations.get(c).values[next[c]]);
+                    }
+                }
+                if (foundAt == foundSize)
+                {
+                    int page = nextPage();
+                    if (page >= 0 && page * MailboxArchive.PAGE_SIZE <= value)
+                    {
+                        lookThrough(page);
+                        continue;
+                    }
+                }
+                int position = foundAt < foundSize ? Math.min(found[foundAt], value) : value;
+                if (position == end)
+                {
+                    return end;
+                }
+                // a message can be filed under several of the counterparts,
+                // and under a page of one and the position of another
+                if (foundAt < foundSize && found[foundAt] == position)
+                {
+                    ++foundAt;
+                }
+                for (int c = 0; c < sizes.length; ++c)
+                {
+                    if (next[c] < sizes[c] && conversations.get(c).values[next[c]] == position)
+                    {
+                        ++next[c];
+                    }
+                }
+                return position;
+            }
+        }
+
+        // the smallest page still to look through, taken off every
+        // conversation that has it, or -1 if there is none
+        private int nextPage()
+        {
+            int smallest = Integer.MAX_VALUE;
+            for (int c = 0; c < sizes.length; ++c)
+            {
+                int[] pages = conversations.get(c).pages;
+                if (nextPage[c] < pages.length)
+                {
+                    smallest = Math.min(smallest, pages[nextPage[c]]);
+                }
+            }
+            if (smallest == Integer.MAX_VALUE)
+            {
+                return -1;
+            }
+            for (int c = 0; c < sizes.length; ++c)
+            {
+                int[] pages = conversations.get(c).pages;
+                if (nextPage[c] < pages.length && pages[nextPage[c]] == smallest)
+                {
+                    ++nextPage[c];
+                }
+            }
+            return smallest;
+        }
+
+        private void lookThrough(int page)
+        {
+            foundAt = 0;
+            foundSize = 0;
+            int first = Math.max(start, page * MailboxArchive.PAGE_SIZE);
+            int last = Math.min(end, (page + 1) * MailboxArchive.PAGE_SIZE);
+            for (int position = first; position < last; ++position)
+            {
+                Message message = look(position);
+                if (message != null && involves(message, counterparts))
+                {
+                    found[foundSize++] = position;
+                }
+            }
+        }
+
+        // the message at a position, null for an archived one that was read
+        // when only the unread ones are looked at. Its page is only read if
+        // it is unread
+        private Message look(int position)
+        {
+            if (unreadOnly && position < storage.archived
+                    && !storage.pages[position / MailboxArchive.PAGE_SIZE].
+                    isUnread(position % MailboxArchive.PAGE_SIZE))
+            {
+                return null;
+            }
+            return cursor.get(position);
+        }
+    }
+
+    /**
+     * Constructs an empty mailbox of an unknown owner, which files messages
+     * under every nickname they involve
+     */
+    public Mailbox()
+    {
+        this(null, Collections.emptyList());
+    }
+
+    /**
+     * Constructs a mailbox of an unknown owner holding the supplied messages
+     * in the same order
+     *
+     * @param messages the messages to copy into this mailbox
+     */
+    public Mailbox(Collection<Message> messages)
+    {
+        this(null, messages);
+    }
+
+    /**
+     * Constructs the mailbox of a user holding the supplied messages in the
+     * same order
+     *
+     * @param owner the nickname of the user the mailbox belongs to, null if
+     * unknown
+     * @param messages the messages to copy into this mailbox
+     */
+    public Mailbox(String owner, Collection<Message> messages)
+    {
+        super();
+        this.owner = owner;
+        addAll(messages);
+    }
+
+    /**
+     * The nickname of the user the mailbox belongs to, which its messages are
+     * not filed under
+     *
+     * @return the nickname of the owner, or null if unknown
+     */
+    public String getOwner()
+    {
+        return owner;
+    }
+
+    @Override
+    public Message get(int index)
+    {
+        Storage current = storage;
+        if (index < 0 || index >= current.size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + current.size);
+        }
+        return new Cursor(current, true).get(index);
+    }
+
+    @Override
+    public int size()
+    {
+        return storage.size;
+    }
+
+    @Override
+    public Iterator<Message> iterator()
+    {
+        Storage current = storage;
+        int end = current.size;
+        Cursor cursor = new Cursor(current, false);
+        return new Iterator<Message>()
+        {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < end;
+            }
+
+            @Override
+            public Message next()
+            {
+                if (next >= end)
+                {
+                    throw new NoSuchElementException();
+                }
+                return cursor.get(next++);
+            }
+        };
+    }
+
+    /**
+     * Returns the messages that involve any of the given nicknames as sender,
+     * receiver or broadcast list, in mailbox order
+     *
+     * @param counterparts the nicknames of users and/or broadcast lists
+     * @return the matching messages in the order they were added
+     */
+    public List<Message> getConversation(String... counterparts)
+    {
+        return getConversation(Arrays.asList(counterparts));
+    }
+
+    /**
+     * Returns the messages that involve any of the given nicknames as sender,
+     * receiver or broadcast list, in mailbox order
+     *
+     * @param counterparts the nicknames of users and/or broadcast lists
+     * @return the matching messages in the order they were added
+     */
+    public List<Message> getConversation(Collection<String> counterparts)
+    {
+        return getConversation(counterparts, false);
+    }
+
+    /**
+     * Returns the messages that involve any of the given nicknames as sender,
+     * receiver or broadcast list, in mailbox order. With unreadOnly, the
+     * archived messages that were read are left out, and only the pages with
+     * unread messages are read. The messages in memory come back whether
+     * they were read or not
+     *
+     * @param counterparts the nicknames of users and/or broadcast lists
+     * @param unreadOnly true to look only for the messages that may be unread
+     * @return the matching messages in the order they were added
+     */
+    public List<Message> getConversation(Collection<String> counterparts, boolean unreadOnly)
+    {
+        Storage current = storage;
+        // the index can already hold messages added after we looked
+        int end = current.size;
+        Cursor cursor = new Cursor(current, false);
+        Walk walk = new Walk(current, cursor, counterparts, unreadOnly,
+                withOwner(counterparts), 0, end);
+        List<Message> result = new ArrayList<>();
+        for (int position = walk.next(); position < end; position = walk.next())
+        {
+            result.add(cursor.get(position));
+        }
+        return result;
+    }
+
+    /**
+     * A page of messages of a mailbox
+     */
+    public static class Page
+    {
+
+        private final List<Message> messages;
+        private final MessageCursor next;
+
+        private Page(List<Message> messages, MessageCursor next)
+        {
+            this.messages = messages;
+            this.next = next;
+        }
+
+        /**
+         * The messages of the page
+         *
+         * @return the messages in mailbox order
+         */
+        public List<Message> getMessages()
+        {
+            return messages;
+        }
+
+        /**
+         * Where the next page starts
+         *
+         * @return the cursor of the last message of this page, or null if
+         * there were no more messages after it
+         */
+        public MessageCursor getNext()
+        {
+            return next;
+        }
+    }
+
+    /**
+     * Returns at most limit messages that come after a cursor, either all the
+     * messages or those that involve any of the given nicknames as sender,
+     * receiver or broadcast list. Only the messages of the page are looked
+     * at: the start of a conversation is found by a binary search of its
+     * positions
+     *
+     * @param counterparts the nicknames of users and/or broadcast lists, null
+     * for all the messages
+     * @param after the cursor of the last message already read, null to start
+     * with the first message
+     * @param limit the largest number of messages to return, at least 1
+     * @return the page, or null if the cursor does not point at a message of
+     * this mailbox any more
+     */
+    public Page getPage(Collection<String> counterparts, MessageCursor after, int limit)
+    {
+        Storage current = storage;
+        int end = current.size;
+        Cursor cursor = new Cursor(current, true);
+        int start = 0;
+        if (after != null)
+        {
+            if (after.getPosition() >= end || cursor.get(after.getPosition()).
+                    getEnvelope().getSentMillis() != after.getSentMillis())
+            {
+                return null;
+            }
+            start = after.getPosition() + 1;
+        }
+
+        List<Message> messages = new ArrayList<>(Math.min(limit, end - start));
+        int last = -1;
+        boolean more;
+        if (counterparts == null)
+        {
+            last = start + Math.min(limit, end - start) - 1;
+            for (int i = start; i <= last; ++i)
+            {
+                messages.add(cursor.get(i));
+            }
+            more = last + 1 < end;
+        } else
+        {
+            Walk walk = new Walk(current, cursor, counterparts, false,
+                    withOwner(counterparts), start, end);
+            int position = walk.next();
+            while (position < end && messages.size() < limit)
+            {
+                messages.add(cursor.get(position));
+                last = position;
+                position = walk.next();
+            }
+            more = position < end;
+        }
+        MessageCursor next = more && last >= 0
+                ? new MessageCursor(cursor.get(last).getEnvelope().getSentMillis(), last)
+                : null;
+        return new Page(messages, next);
+    }
+
+    /**
+     * Removes all the unread messages from the unread queue and returns them
+     * in the order they were sent, messages sent at the same time in mailbox
+     * order. The archived ones are read back from the pages that still have
+     * unread messages. The messages are not marked as read, that is up to
+     * the caller
+     *
+     * @return the unread messages, oldest first
+     */
+    public List<Message> drainUnread()
+    {
+        List<Message> drained = new ArrayList<>();
+        Message message;
+        while ((message = unread.poll()) != null)
+        {
+            if (!message.isRead())
+            {
+                drained.add(message);
+            }
+        }
+        // taken after the queue, so a message archived while it was drained
+        // is in a page of this storage if it is not in the queue any more
+        Storage current = storage;
+        List<Message> result = new ArrayList<>();
+        if (current.archived > 0)
+        {
+            Cursor cursor = new Cursor(current, false);
+            for (int p = 0; p < current.pages.length; ++p)
+            {
+                MailboxArchive.Page page = current.pages[p];
+                for (int i = 0; page.hasUnread() && i < MailboxArchive.PAGE_SIZE; ++i)
+                {
+                    if (page.isUnread(i))
+                    {
+                        result.add(cursor.get(p * MailboxArchive.PAGE_SIZE + i));
+                    }
+                }
+            }
+            // and then it is found in the page
+            Set<Message> resident = Collections.newSetFromMap(new IdentityHashMap<>());
+            resident.addAll(Arrays.asList(current.messages).subList(0,
+                    current.size - current.archived));
+            drained.removeIf(m -> !resident.contains(m));
+        }
+        result.addAll(drained);
+        // mostly in order already, which the stable merge sort is quick at
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Drops the messages that have been read since they were added from the
+     * unread queue. Call this after marking many messages as read so the queue
+     * does not hold on to them until the next drain
+     */
+    public void pruneUnread()
+    {
+        unread.removeIf(Message::isRead);
+    }
+
+    /**
+     * Returns the messages of this mailbox that are in memory: all of them,
+     * unless the MailboxArchive is on
+     *
+     * @return the messages in memory, in no particular order
+     */
+    public List<Message> getResidentMessages()
+    {
+        Storage current = storage;
+        return new ArrayList<>(Arrays.asList(current.messages).subList(0,
+                current.size - current.archived));
+    }
+
+    @Override
+    public boolean add(Message message)
+    {
+        synchronized (this)
+        {
+            append(message);
+        }
+        archiveOverflow();
+        return true;
+    }
+
+    @Override
+    public void add(int position, Message message)
+    {
+        synchronized (this)
+        {
+            List<Message> copy = new ArrayList<>(this);
+            copy.add(position, message);
+            replaceWith(copy);
+        }
+        archiveOverflow();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Message> messages)
+    {
+        synchronized (this)
+        {
+            for (Message message : messages)
+            {
+                append(message);
+            }
+        }
+        archiveOverflow();
+        return !messages.isEmpty();
+    }
+
+    @Override
+    public Message set(int position, Message message)
+    {
+        Message old;
+        synchronized (this)
+        {
+            List<Message> copy = new ArrayList<>(this);
+            old = copy.set(position, message);
+            replaceWith(copy);
+        }
+        archiveOverflow();
+        return old;
+    }
+
+    @Override
+    public Message remove(int position)
+    {
+        Message old;
+        synchronized (this)
+        {
+            List<Message> copy = new ArrayList<>(this);
+            old = copy.remove(position);
+            replaceWith(copy);
+        }
+        archiveOverflow();
+        return old;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super Message> filter)
+    {
+        boolean changed;
+        synchronized (this)
+        {
+            List<Message> copy = new ArrayList<>(this);
+            changed = copy.removeIf(filter);
+            if (changed)
+            {
+                replaceWith(copy);
+            }
+        }
+        archiveOverflow();
+        return changed;
+    }
+
+    @Override
+    public boolean remove(Object o)
+    {
+        return removeIf(m -> m.equals(o));
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c)
+    {
+        return removeIf(c::contains);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c)
+    {
+        return removeIf(m -> !c.contains(m));
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        replaceWith(Collections.emptyList());
+    }
+
+    // puts a message after the others. Call it holding the lock
+    private void append(Message message)
+    {
+        Storage current = storage;
+        int size = current.size;
+        int slot = size - current.archived;
+        if (slot == current.messages.length)
+        {
+            current = new Storage(Arrays.copyOf(current.messages, slot * 2), size,
+                    current.conversations, current.archived, current.pages, current.file);
+            storage = current;
+        }
+        current.messages[slot] = message;
+        current.size = size + 1;
+        index(current, size, message);
+        if (!message.isRead())
+        {
+            unread.add(message);
+        }
+    }
+
+    // builds fresh storage, index and unread queue for the messages and swaps
+    // them in. Readers keep using the storage they already have. Call it
+    // holding the lock, then archiveOverflow without it. The messages are
+    // archived again into a new file and the one before is deleted
+    private void replaceWith(List<Message> messages)
+    {
+        int old = file;
+        file = 0;
+        Storage fresh = new Storage(messages.toArray(new Message[Math.max(16, messages.size())]),
+                messages.size(), new ConcurrentHashMap<>(), 0, NO_PAGES, 0);
+        unread.clear();
+        for (int i = 0; i < messages.size(); ++i)
+        {
+            Message message = messages.get(i);
+            index(fresh, i, message);
+            if (!message.isRead())
+            {
+                unread.add(message);
+            }
+        }
+        storage = fresh;
+        if (old != 0)
+        {
+            try
+            {
+                MailboxArchive.getInstance().delete(old);
+            } catch (IOException ex)
+            {
+                // left behind until the archive is emptied at the next start
+            }
+        }
+    }
+
+    // archives the oldest pages while there is more than a page over the hot
+    // window in memory. Call it without holding the lock: a page is written
+    // while senders go on adding, then swapped out under the lock. A thread
+    // that finds another one archiving leaves it to that one. If a page
+    // cannot be written it stays in memory and is tried again on the next add
+    private void archiveOverflow()
+    {
+        MailboxArchive archive = MailboxArchive.getInstance();
+        if (archive == null)
+        {
+            return;
+        }
+        int page = MailboxArchive.PAGE_SIZE;
+        while (true)
+        {
+            Message[] oldest;
+            int target;
+            synchronized (this)
+            {
+                Storage current = storage;
+                if (archiving || current.size - current.archived < archive.getHotWindow() + page)
+                {
+                    return;
+                }
+                if (file == 0)
+                {
+                    try
+                    {
+                        file = archive.newFile();
+                    } catch (IOException ex)
+                    {
+                        return;
+                    }
+                }
+                archiving = true;
+                target = file;
+                oldest = Arrays.copyOf(current.messages, page);
+            }
+            MailboxArchive.Page written = null;
+            try
+            {
+                written = archive.write(target, oldest);
+            } catch (IOException ex)
+            {
+                return;
+            } finally
+            {
+                synchronized (this)
+                {
+                    archiving = false;
+                    // unless the messages were replaced meanwhile
+                    if (written != null && file == target)
+                    {
+                        dropOldest(written, oldest);
+                    }
+                }
+            }
+        }
+    }
+
+    // swaps the oldest page, which was written as given, out of memory. Call
+    // it holding the lock
+    private void dropOldest(MailboxArchive.Page written, Message[] oldest)
+    {
+        int page = oldest.length;
+        Storage current = storage;
+        Message[] rest = new Message[current.messages.length];
+        System.arraycopy(current.messages, page, rest, 0,
+                current.size - current.archived - page);
+        MailboxArchive.Page[] pages = Arrays.copyOf(current.pages, current.pages.length + 1);
+        pages[pages.length - 1] = written;
+        // before the storage, so a reader of the new one finds the page
+        for (String counterpart : counterparts(oldest))
+        {
+            current.conversations.put(counterpart,
+                    current.conversations.get(counterpart).archive(pages.length - 1));
+        }
+        storage = new Storage(rest, current.size, current.conversations,
+                current.archived + page, pages, file);
+        // the unread ones come first in the queue, their page has them now
+        Set<Message> archived = Collections.newSetFromMap(new IdentityHashMap<>());
+        archived.addAll(Arrays.asList(oldest));
+        Message head;
+        while ((head = unread.peek()) != null && archived.contains(head))
+        {
+            unread.remove(head);
+        }
+    }
+
+    // the nicknames the messages are filed under
+    private Set<String> counterparts(Message[] messages)
+    {
+        Set<String> counterparts = new HashSet<>();
+        for (Message message : messages)
+        {
+            counterparts.add(message.getFromNickname());
+            if (message.getToNickname() != null)
+            {
+                counterparts.add(message.getToNickname());
+            }
+            if (message.getBroadcastNickname() != null)
+            {
+                counterparts.add(message.getBroadcastNickname());
+            }
+        }
+        counterparts.remove(owner);
+        return counterparts;
+    }
+
+    // whether the counterparts ask for the conversation with the owner
+    private boolean withOwner(Collection<String> counterparts)
+    {
+        return owner != null && counterparts.contains(owner);
+    }
+
+    // whether the message involves any of the counterparts
+    private static boolean involves(Message message, Collection<String> counterparts)
+    {
+        return counterparts.contains(message.getFromNickname())
+                || (message.getToNickname() != null && counterparts.contains(message.getToNickname()))
+                || (message.getBroadcastNickname() != null
+                && counterparts.contains(message.getBroadcastNickname()));
+    }
+
+    private void index(Storage target, int position, Message message)
+    {
+        String from = message.getFromNickname();
+        String to = message.getToNickname();
+        String bcast = message.getBroadcastNickname();
+        file(target, from, position);
+        if (to != null && !to.equals(from))
+        {
+            file(target, to, position);
+        }
+        if (bcast != null && !bcast.equals(from) && !bcast.equals(to))
+        {
+            file(target, bcast, position);
+        }
+    }
+
+    private void file(Storage target, String counterpart, int position)
+    {
+        if (counterpart.equals(owner))
+        {
+            return;
+        }
+        target.conversations.computeIfAbsent(counterpart, k -> new Positions()).
+                add(position);
+    }
+}
@@ -0,0 +1,507 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the old messages of mailboxes on disk. When the whatsapp.archive
+ * system property names a directory, every Mailbox keeps only its newest
+ * messages in memory, a hot window of whatsapp.archive.hot messages (1000 by
+ * default). Older messages are written out to a file of that mailbox a page
+ * of PAGE_SIZE messages at a time. Reading a page back goes through an LRU
+ * cache shared by all mailboxes, which holds the pages read last up to
+ * whatsapp.archive.cache bytes (64MB by default).
+ *
+ * Unread messages are archived like the others. A page on disk is never
+ * written again, which of its messages are still unread is kept in memory
+ * with the Page instead, one bit per message, and a message never goes from
+ * read to unread. Messages read back from a page are copies that are thrown
+ * away with the page, so changing them changes nothing, except that marking
+ * one as read clears its bit.
+ *
+ * Every mailbox file is kept open from its first page until it is deleted.
+ * A mailbox whose messages are moved around as a whole, which only the list
+ * methods that insert or remove in the middle do, is archived again into a
+ * new file and its old file is deleted.
+ *
+ * The archive only stands in for memory, the snapshot and the write-ahead
+ * log are what keep messages across restarts. Its directory is emptied of
+ * page files when the program starts.
+ *
+ * @author Duanyang Jing
+ */
+public class MailboxArchive
+{
+
+    /**
+     * The system property that names the archive directory and turns the
+     * archive on
+     */
+    public static final String PROPERTY = "whatsapp.archive";
+    /**
+     * The system property with the number of messages a mailbox keeps in
+     * memory
+     */
+    public static final String HOT_PROPERTY = "whatsapp.archive.hot";
+    /**
+     * The system property with the size of the page cache in bytes
+     */
+    public static final String CACHE_PROPERTY = "whatsapp.archive.cache";
+    /**
+     * The number of messages in a page
+     */
+    public static final int PAGE_SIZE = 256;
+
+    private static final String SUFFIX = ".pages";
+    // a guess of the heap taken by a message read back from a page, on top
+    // of the bytes of its page
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private static final MailboxArchive INSTANCE = open();
+
+    private final Path directory;
+    private final int hotWindow;
+    private final long budget;
+    private final AtomicInteger files = new AtomicInteger();
+    // the open mailbox files by number
+    private final Map<Integer, FileChannel> channels = new ConcurrentHashMap<>();
+
+    // file << 40 | offset -> the page, least recently used first
+    private final LinkedHashMap<Long, Cached> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cached;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Where a page was written in the file of its mailbox, and which of its
+     * messages are still unread
+     */
+    static final class Page
+    {
+
+        private final long offset;
+        private final int length;
+        // one bit per message, null once they are all read
+        private long[] unread;
+
+        private Page(long offset, int length, Message[] messages)
+        {
+            this.offset = offset;
+            this.length = length;
+            for (int i = 0; i < messages.length; ++i)
+            {
+                if (!messages[i].isRead())
+                {
+                    if (unread == null)
+                    {
+                        unread = new long[(messages.length + 63) / 64];
+                    }
+                    unread[i >> 6] |= 1L << i;
+                }
+            }
+        }
+
+        /**
+         * Whether any message of the page is unread
+         *
+         * @return true if one is
+         */
+        synchronized boolean hasUnread()
+        {
+            return unread != null;
+        }
+
+        /**
+         * Whether a message of the page is unread
+         *
+         * @param index the offset of the message in the page
+         * @return true if it is
+         */
+        synchronized boolean isUnread(int index)
+        {
+            return unread != null && (unread[index >> 6] & (1L << index)) != 0;
+        }
+
+        private synchronized void markRead(int index)
+        {
+            if (unread == null)
+            {
+                return;
+            }
+            unread[index >> 6] &= ~(1L << index);
+            for (long bits : unread)
+            {
+                if (bits != 0)
+                {
+                    return;
+                }
+            }
+            unread = null;
+        }
+    }
+
+    // a message read back from a page, whose read flag is the bit of its page
+    private static final class Archived extends Message
+    {
+
+        private final Page page;
+        private final int index;
+
+        private Archived(MessageEnvelope envelope, String toNickname,
+                String broadcastNickname, Page page, int index) throws WhatsAppRuntimeException
+        {
+            super(envelope, toNickname, broadcastNickname, false);
+            this.page = page;
+            this.index = index;
+        }
+
+        @Override
+        public boolean isRead()
+        {
+            return !page.isUnread(index);
+        }
+
+        // called by the constructor of Message before page is set, with
+        // false, which changes nothing
+        @Override
+        public void setRead(boolean read)
+        {
+            if (read)
+            {
+                page.markRead(index);
+            }
+        }
+    }
+
+    // a page in the cache and how much heap it is guessed to take
+    private static final class Cached
+    {
+
+        private final Message[] messages;
+        private final long weight;
+
+        private Cached(Message[] messages, long weight)
+        {
+            this.messages = messages;
+            this.weight = weight;
+        }
+    }
+
+    private MailboxArchive(Path directory, int hotWindow, long budget)
+    {
+        this.directory = directory;
+        this.hotWindow = hotWindow;
+        this.budget = budget;
+    }
+
+    private static MailboxArchive open()
+    {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isEmpty())
+        {
+            return null;
+        }
+        Path directory = Paths.get(path);
+        try
+        {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*" + SUFFIX))
+            {
+                for (Path file : stale)
+                {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        return new MailboxArchive(directory,
+                Math.max(1, Integer.getInteger(HOT_PROPERTY, 1000)),
+                Math.max(0, Long.getLong(CACHE_PROPERTY, 64L * 1024 * 1024)));
+    }
+
+    /**
+     * Returns the archive
+     *
+     * @return the archive, or null if all messages are kept in memory
+     */
+    public static MailboxArchive getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The number of messages a mailbox keeps in memory
+     *
+     * @return the size of the hot window
+     */
+    public int getHotWindow()
+    {
+        return hotWindow;
+    }
+
+    /**
+     * The number of page reads served from the cache
+     *
+     * @return the number of cache hits
+     */
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * The number of page reads that went to disk
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * The bytes held by the page cache, as estimated
+     *
+     * @return the estimated size of the cached pages
+     */
+    public synchronized long getCachedBytes()
+    {
+        return cached;
+    }
+
+    /**
+     * Creates a new mailbox file and keeps it open until it is deleted
+     *
+     * @return the file number
+     * @throws IOException if the file cannot be created
+     */
+    int newFile() throws IOException
+    {
+        int file = files.incrementAndGet();
+        channels.put(file, FileChannel.open(path(file), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        return file;
+    }
+
+    /**
+     * Appends a page to a mailbox file. Only one thread at a time may write
+     * to the same file. Which of the messages are unread is kept with the
+     * page that is returned
+     *
+     * @param file the number of the file
+     * @param messages the messages of the page
+     * @return where the page was written
+     * @throws IOException if the page cannot be written, the file was
+     * deleted, or the text of one of its messages was lost
+     */
+    Page write(int file, Message[] messages) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(messages.length * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(messages.length);
+        for (Message message : messages)
+        {
+            MessageEnvelope envelope = message.getEnvelope();
+            writeString(out, envelope.getFromNickname());
+            writeString(out, message.getToNickname());
+            writeString(out, message.getBroadcastNickname());
+            out.writeLong(envelope.getSentMillis());
+            try
+            {
+                writeString(out, envelope.getMessage());
+            } catch (WhatsAppRuntimeException ex)
+            {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+        out.flush();
+        ByteBuffer page = ByteBuffer.wrap(bytes.toByteArray());
+        FileChannel channel = channel(file);
+        long offset = channel.size();
+        while (page.hasRemaining())
+        {
+            channel.write(page, offset + page.position());
+        }
+        return new Page(offset, page.capacity(), messages);
+    }
+
+    /**
+     * Reads a page back, from the cache if it is there
+     *
+     * @param file the number of the file
+     * @param page where the page was written
+     * @param keep whether to put the page into the cache if it was not there,
+     * false for reads that go through many pages once
+     * @return the messages of the page. Shared with other readers of the
+     * page, do not change them other than marking them as read
+     * @throws UncheckedIOException if the page cannot be read
+     */
+    Message[] read(int file, Page page, boolean keep)
+    {
+        Long key = ((long) file << 40) | page.offset;
+        synchronized (this)
+        {
+            Cached hit = cache.get(key);
+            if (hit != null)
+            {
+                hits.increment();
+                return hit.messages;
+            }
+        }
+        misses.increment();
+        Message[] messages;
+        try
+        {
+            messages = decode(readBytes(file, page), page);
+        } catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        if (!keep)
+        {
+            return messages;
+        }
+        synchronized (this)
+        {
+            Cached fresh = new Cached(messages, page.length
+                    + MESSAGE_OVERHEAD * (long) messages.length);
+            Cached old = cache.put(key, fresh);
+            cached += fresh.weight - (old == null ? 0 : old.weight);
+            // the page just read is the newest, so it goes last if at all
+            Iterator<Cached> eldest = cache.values().iterator();
+            while (cached > budget && eldest.hasNext())
+            {
+                cached -= eldest.next().weight;
+                eldest.remove();
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Closes and deletes a mailbox file and drops its pages from the cache
+     *
+     * @param file the number of the file
+     * @throws IOException if the file cannot be deleted
+     */
+    void delete(int file) throws IOException
+    {
+        synchronized (this)
+        {
+            Iterator<Map.Entry<Long, Cached>> entries = cache.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Long, Cached> entry = entries.next();
+                if (entry.getKey() >>> 40 == file)
+                {
+                    cached -= entry.getValue().weight;
+                    entries.remove();
+                }
+            }
+        }
+        FileChannel channel = channels.remove(file);
+        if (channel != null)
+        {
+            channel.close();
+        }
+        Files.deleteIfExists(path(file));
+    }
+
+    private FileChannel channel(int file) throws IOException
+    {
+        FileChannel channel = channels.get(file);
+        if (channel == null)
+        {
+            throw new IOException("Mailbox file " + file + " was deleted");
+        }
+        return channel;
+    }
+
+    private ByteBuffer readBytes(int file, Page page) throws IOException
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(page.length);
+        FileChannel channel = channel(file);
+        while (bytes.hasRemaining())
+        {
+            if (channel.read(bytes, page.offset + bytes.position()) < 0)
+            {
+                throw new IOException("Mailbox page cut short");
+            }
+        }
+        bytes.flip();
+        return bytes;
+    }
+
+    private static Message[] decode(ByteBuffer bytes, Page page) throws IOException
+    {
+        try
+        {
+            Message[] messages = new Message[bytes.getInt()];
+            for (int i = 0; i < messages.length; ++i)
+            {
+                String from = readString(bytes);
+                String to = readString(bytes);
+                String broadcast = readString(bytes);
+                long sentMillis = bytes.getLong();
+                String text = readString(bytes);
+                messages[i] = new Archived(MessageEnvelope.onHeap(from, sentMillis, text),
+                        to, broadcast, page, i);
+            }
+            return messages;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException | WhatsAppRuntimeException ex)
+        {
+            throw new IOException("Damaged mailbox page", ex);
+        }
+    }
+
+    private Path path(int file)
+    {
+        return directory.resolve("mailbox-" + file + SUFFIX);
+    }
+
+    // a length in bytes, -1 for null, then the UTF-8 bytes
+    private static void writeString(DataOutputStream out, String s) throws IOException
+    {
+        if (s == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer bytes)
+    {
+        int length = bytes.getInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        String s = new String(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                length, StandardCharsets.UTF_8);
+        bytes.position(bytes.position() + length);
+        return s;
+    }
+}
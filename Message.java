@@ -24,12 +24,15 @@ public class Message implements Comparable<Message>
 {
 
     //TODO: add class fields here
-    private String fromNickname;
-    private String toNickname;
-    private String broadcastNickname;
-    private Date sentTime;
-    private String message;
-    private boolean read;
+    // sender, time and text, possibly shared with other receivers' copies
+    private MessageEnvelope envelope;
+    // the rest of the message packed into one long: the Nicknames id + 1 of
+    // toNickname in the high 32 bits, the id + 1 of broadcastNickname in bits
+    // 1 to 31 (0 meaning null for both) and the read flag in bit 0
+    private long state;
+
+    private static final long READ_BIT = 1L;
+    private static final long BROADCAST_MASK = 0xFFFFFFFEL;
 
 
     /**
@@ -62,18 +65,54 @@ public class Message implements Comparable<Message>
             throw new WhatsAppRuntimeException(Config.CANT_BE_EMPTY_OR_NULL);
         // initialize message to a single user
         if (toNickname != null && broadcastNickname == null)
-            this.toNickname = toNickname;
+            setToNickname(toNickname);
         // initialize message to a broadcast list
         else if (toNickname == null && broadcastNickname != null)
-            this.broadcastNickname = broadcastNickname;
+            setBroadcastNickname(broadcastNickname);
         // tonickname and broadcastnickname illegal input
         else
             throw new WhatsAppRuntimeException(Config.CANT_BE_EMPTY_OR_NULL);
         // set other variables
-        this.fromNickname = fromNickname;
-        this.message = message;
-        this.sentTime = sentTime;
+        this.envelope = new MessageEnvelope(fromNickname, sentTime, message);
+
+    }
+
+    /**
+     * A constructor for one copy of a message whose sender, time and text are
+     * held by an envelope that may be shared with other copies. This is used
+     * for broadcasts so that every receiver does not get its own copy of the
+     * same text. toNickname and broadcastNickname follow the same rules as
+     * in the other constructor.
+     *
+     * @param envelope the sender, time and text of this message
+     * @param toNickname the nickname of the user to whom the message is being
+     * sent. This must be null if broadcastNickname is provided
+     * @param broadcastNickname the nickname of the broadcast list to which
+     * this message is being sent. This must be null if toNickname is provided
+     * @param read whether the receiver has read this message
+     * @throws WhatsAppRuntimeException with CANT_BE_EMPTY_OR_NULL if envelope
+     * is null or toNickname and broadcastNickname are not exactly one of null
+     */
+    public Message(MessageEnvelope envelope, String toNickname, String broadcastNickname,
+            boolean read) throws WhatsAppRuntimeException
+    {
+        if (envelope == null || (toNickname == null) == (broadcastNickname == null))
+            throw new WhatsAppRuntimeException(Config.CANT_BE_EMPTY_OR_NULL);
+        this.envelope = envelope;
+        setToNickname(toNickname);
+        setBroadcastNickname(broadcastNickname);
+        setRead(read);
+    }
 
+    /**
+     * A getter for the envelope holding the sender, time and text of this
+     * message
+     *
+     * @return the envelope of this message
+     */
+    public MessageEnvelope getEnvelope()
+    {
+        return envelope;
     }
 
     /**
@@ -84,7 +123,7 @@ public class Message implements Comparable<Message>
     public String getFromNickname()
     {
         //TODO
-        return fromNickname;
+        return envelope.getFromNickname();
     }
 
     /**
@@ -95,7 +134,7 @@ public class Message implements Comparable<Message>
     public void setFromNickname(String fromNickname)
     {
         //TODO
-        this.fromNickname = fromNickname;
+        this.envelope = copyEnvelope(fromNickname, envelope.getSentTime(), text());
     }
 
     /**
@@ -106,7 +145,7 @@ public class Message implements Comparable<Message>
     public String getToNickname()
     {
         //TODO
-        return this.toNickname;
+        return Nicknames.nameOf((int) (state >>> 32) - 1);
     }
 
     /**
@@ -117,7 +156,8 @@ public class Message implements Comparable<Message>
     public void setToNickname(String toNickname)
     {
         //TODO
-        this.toNickname = toNickname;
+        long id = Nicknames.idOf(toNickname) + 1;
+        this.state = (id << 32) | (state & 0xFFFFFFFFL);
     }
 
     /**
@@ -128,7 +168,7 @@ public class Message implements Comparable<Message>
     public String getBroadcastNickname()
     {
         //TODO
-        return this.broadcastNickname;
+        return Nicknames.nameOf((int) ((state & BROADCAST_MASK) >>> 1) - 1);
     }
 
     /**
@@ -139,11 +179,13 @@ public class Message implements Comparable<Message>
     public void setBroadcastNickname(String broadcastNickname)
     {
         //TODO
-        this.broadcastNickname = broadcastNickname;
+        long id = Nicknames.idOf(broadcastNickname) + 1;
+        this.state = (id << 1) | (state & ~BROADCAST_MASK);
     }
 
     /**
-     * A getter for the time at which this message was sent
+     * A getter for the time at which this message was sent. Every call returns
+     * a new Date object
      *
      * @return the Date object which captures the time at which this message was
      * sent
@@ -151,7 +193,7 @@ public class Message implements Comparable<Message>
     public Date getSentTime()
     {
         //TODO
-        return this.sentTime;
+        return envelope.getSentTime();
     }
 
     /**
@@ -163,18 +205,20 @@ public class Message implements Comparable<Message>
     public void setSentTime(Date sentTime)
     {
         //TODO
-        this.sentTime = sentTime;
+        this.envelope = copyEnvelope(envelope.getFromNickname(), sentTime, text());
     }
 
     /**
      * A getter for the message string
      *
      * @return the message string
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text was lost from the MessageArena
      */
-    public String getMessage()
+    public String getMessage() throws WhatsAppRuntimeException
     {
         //TODO
-        return this.message;
+        return envelope.getMessage();
     }
 
     /**
@@ -185,7 +229,7 @@ public class Message implements Comparable<Message>
     public void setMessage(String message)
     {
         //TODO
-        this.message = message;
+        this.envelope = copyEnvelope(envelope.getFromNickname(), envelope.getSentTime(), message);
     }
 
     /**
@@ -197,7 +241,7 @@ public class Message implements Comparable<Message>
     public boolean isRead()
     {
         //TODO
-        return read;
+        return (state & READ_BIT) != 0;
     }
 
     /**
@@ -209,11 +253,30 @@ public class Message implements Comparable<Message>
     public void setRead(boolean read)
     {
         //TODO
-        this.read = read;
+        this.state = read ? state | READ_BIT : state & ~READ_BIT;
     }
 
     public int compareTo(Message m) {
-        return sentTime.compareTo(m.sentTime);
+        return Long.compare(envelope.getSentMillis(), m.envelope.getSentMillis());
+    }
+
+    // the text for a fresh envelope. The setters cannot throw a checked
+    // exception, so a lost text fails them like a bad argument does
+    private String text() {
+        try {
+            return envelope.getMessage();
+        } catch (WhatsAppRuntimeException ex) {
+            throw new IllegalStateException(ex.getMessage(), ex);
+        }
+    }
+
+    // the envelope may be shared, so changes go into a fresh one
+    private static MessageEnvelope copyEnvelope(String fromNickname, Date sentTime, String message) {
+        try {
+            return new MessageEnvelope(fromNickname, sentTime, message);
+        } catch (WhatsAppRuntimeException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
     }
 
 }
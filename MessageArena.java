@@ -0,0 +1,261 @@
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Keeps the texts of messages off the Java heap. With many millions of
+ * messages, their Strings are most of what the garbage collector has to go
+ * through in the old generation. When the whatsapp.arena system property is
+ * true, every envelope writes its text as UTF-8 into large direct
+ * ByteBuffer segments instead and only keeps where it is. The text is
+ * decoded again every time it is asked for, which is when a message is
+ * printed.
+ *
+ * A location is the index of the segment in the high 32 bits and the offset
+ * in it in the low 32 bits. Segments are only ever appended to, so a text
+ * never changes where it is written. Texts of messages that are gone leave
+ * holes behind, which compact() reclaims by copying the texts that are still
+ * used out of mostly empty segments and dropping those segments. Every copy
+ * is made and its envelope pointed at it before any segment is dropped, so a
+ * reader that finds the segment of a location dropped reads the location of
+ * the envelope again, which by then points to the copy. An envelope that is
+ * not in any mailbox is not moved and loses its text, reading it then fails
+ * with TEXT_LOST.
+ *
+ * @author Duanyang Jing
+ */
+public class MessageArena
+{
+
+    /**
+     * The system property that turns the arena on
+     */
+    public static final String PROPERTY = "whatsapp.arena";
+    /**
+     * This is shown when the text of a message to display was dropped from
+     * the arena
+     */
+    public static final String TEXT_LOST = "The text of a message sent by %s was lost\n";
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    // segments with less of their bytes in use than this are compacted
+    private static final double COMPACT_BELOW = 0.5;
+
+    private static final MessageArena INSTANCE = Boolean.getBoolean(PROPERTY)
+            ? new MessageArena() : null;
+
+    // dropped segments are null. Replaced, never changed in place, so that
+    // readers can use whatever array they saw
+    private volatile ByteBuffer[] segments = new ByteBuffer[0];
+    // how much of every segment has been written to
+    private int[] used = new int[0];
+    private int current = -1;
+
+    private MessageArena()
+    {
+    }
+
+    /**
+     * Returns the arena
+     *
+     * @return the arena, or null if message texts are kept on the heap
+     */
+    public static MessageArena getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Writes a text into the arena
+     *
+     * @param utf8 the text encoded as UTF-8
+     * @return the location of the text
+     */
+    public synchronized long store(byte[] utf8)
+    {
+        if (current < 0 || used[current] + utf8.length > segments[current].capacity())
+        {
+            addSegment(Math.max(SEGMENT_SIZE, utf8.length));
+        }
+        int offset = used[current];
+        segments[current].put(offset, utf8);
+        used[current] = offset + utf8.length;
+        return ((long) current << 32) | offset;
+    }
+
+    /**
+     * Reads a text back
+     *
+     * @param location where the text is
+     * @param length the length of the text in bytes
+     * @return the text, or null if its segment was dropped by a compaction
+     * since the location was read
+     */
+    public String load(long location, int length)
+    {
+        ByteBuffer[] current = segments;
+        int index = (int) (location >>> 32);
+        ByteBuffer segment = index < current.length ? current[index] : null;
+        if (segment == null)
+        {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        segment.get((int) location, utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The number of bytes held off the heap, holes included
+     *
+     * @return the capacity of all the segments in use
+     */
+    public synchronized long size()
+    {
+        long size = 0;
+        for (ByteBuffer segment : segments)
+        {
+            if (segment != null)
+            {
+                size += segment.capacity();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies the texts still used by a message in some mailbox out of the
+     * segments that are mostly holes and drops those segments. Changing
+     * commands wait while this runs, as they do for a checkpoint, and the
+     * messages still being delivered by the FanOutExecutor are delivered
+     * first, so that no message is on its way into a mailbox
+     *
+     * @return the number of segments dropped
+     */
+    public int compact()
+    {
+        Snapshot.CHANGES.writeLock().lock();
+        try
+        {
+            FanOutExecutor fanOut = FanOutExecutor.getInstance();
+            if (fanOut != null)
+            {
+                fanOut.drain();
+            }
+            return compact(UserDirectory.getInstance());
+        } finally
+        {
+            Snapshot.CHANGES.writeLock().unlock();
+        }
+    }
+
+    private int compact(Iterable<User> users)
+    {
+        int sealed;
+        int[] written;
+        synchronized (this)
+        {
+            // the segment being written to is never compacted
+            sealed = current;
+            written = Arrays.copyOf(used, sealed < 0 ? 0 : sealed);
+        }
+        if (written.length == 0)
+        {
+            return 0;
+        }
+
+        // the texts in use per segment, as offset << 32 | length. A text
+        // shared by the copies of a broadcast shows up once per copy. Messages
+        // read back from the MailboxArchive keep their text on the heap, so
+        // only the messages in memory are looked at
+        long[][] texts = new long[written.length][];
+        int[] counts = new int[written.length];
+        for (User user : users)
+        {
+            for (Message message : user.getMailbox().getResidentMessages())
+            {
+                MessageEnvelope envelope = message.getEnvelope();
+                int index = (int) (envelope.getBodyLocation() >>> 32);
+                if (envelope.isInArena() && index < written.length)
+                {
+                    if (texts[index] == null)
+                    {
+                        texts[index] = new long[64];
+                    } else if (counts[index] == texts[index].length)
+                    {
+                        texts[index] = Arrays.copyOf(texts[index], counts[index] * 2);
+                    }
+                    texts[index][counts[index]++] = ((envelope.getBodyLocation() & 0xFFFFFFFFL) << 32)
+                            | envelope.getBodyLength();
+                }
+            }
+        }
+        boolean[] dropped = new boolean[written.length];
+        int drops = 0;
+        for (int i = 0; i < written.length; ++i)
+        {
+            long live = 0;
+            if (texts[i] != null)
+            {
+                Arrays.sort(texts[i], 0, counts[i]);
+                for (int j = 0; j < counts[i]; ++j)
+                {
+                    if (j == 0 || texts[i][j] != texts[i][j - 1])
+                    {
+                        live += texts[i][j] & 0xFFFFFFFFL;
+                    }
+                }
+            }
+            if (segments[i] != null && live < written[i] * COMPACT_BELOW)
+            {
+                dropped[i] = true;
+                ++drops;
+            }
+        }
+        if (drops == 0)
+        {
+            return 0;
+        }
+
+        // the first copy of a shared text moves it, the others then find it
+        // out of the dropped segments already
+        for (User user : users)
+        {
+            for (Message message : user.getMailbox().getResidentMessages())
+            {
+                MessageEnvelope envelope = message.getEnvelope();
+                int index = (int) (envelope.getBodyLocation() >>> 32);
+                if (envelope.isInArena() && index < dropped.length && dropped[index])
+                {
+                    byte[] utf8 = new byte[envelope.getBodyLength()];
+                    segments[index].get((int) envelope.getBodyLocation(), utf8);
+                    envelope.moveBody(store(utf8));
+                }
+            }
+        }
+        synchronized (this)
+        {
+            ByteBuffer[] remaining = segments.clone();
+            for (int i = 0; i < dropped.length; ++i)
+            {
+                if (dropped[i])
+                {
+                    remaining[i] = null;
+                    used[i] = 0;
+                }
+            }
+            segments = remaining;
+        }
+        return drops;
+    }
+
+    private void addSegment(int capacity)
+    {
+        ByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[grown.length - 1] = ByteBuffer.allocateDirect(capacity);
+        used = Arrays.copyOf(used, grown.length);
+        current = grown.length - 1;
+        segments = grown;
+    }
+}
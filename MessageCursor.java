@@ -0,0 +1,97 @@
+
+/**
+ * Where a paged read of messages stopped: the position in the mailbox of the
+ * last message shown and the time it was sent. The paged read messages
+ * commands print it as sentMillis-position after every page that is not the
+ * last, and take it back to go on after that message. The time lets a
+ * cursor that no longer points at the same message be told apart.
+ *
+ * @author Duanyang Jing
+ */
+public class MessageCursor
+{
+
+    /**
+     * Printed after a page of messages when there are more
+     */
+    public static final String NEXT_PAGE = "More messages, next cursor: %s\n";
+    /**
+     * The error message for a cursor that does not parse or no longer points
+     * at a message of the mailbox
+     */
+    public static final String INVALID_CURSOR = "Invalid cursor %s, read again from the first page\n";
+    /**
+     * The error message for a page size that is not a positive number
+     */
+    public static final String INVALID_LIMIT = "Invalid page size %s\n";
+
+    private final long sentMillis;
+    private final int position;
+
+    /**
+     * Constructs a cursor
+     *
+     * @param sentMillis when the last message shown was sent
+     * @param position its position in the mailbox
+     */
+    public MessageCursor(long sentMillis, int position)
+    {
+        this.sentMillis = sentMillis;
+        this.position = position;
+    }
+
+    /**
+     * Parses a cursor printed by toString
+     *
+     * @param cursor the cursor as typed by the user
+     * @return the cursor
+     * @throws WhatsAppException with INVALID_CURSOR if it does not parse
+     */
+    public static MessageCursor parse(String cursor) throws WhatsAppException
+    {
+        int dash = cursor.lastIndexOf('-');
+        try
+        {
+            if (dash > 0)
+            {
+                MessageCursor parsed = new MessageCursor(
+                        Long.parseLong(cursor.substring(0, dash)),
+                        Integer.parseInt(cursor.substring(dash + 1)));
+                if (parsed.position >= 0)
+                {
+                    return parsed;
+                }
+            }
+        } catch (NumberFormatException ex)
+        {
+            // reported below
+        }
+        throw new WhatsAppException(String.format(INVALID_CURSOR, cursor));
+    }
+
+    /**
+     * When the last message shown was sent
+     *
+     * @return the time in milliseconds
+     */
+    public long getSentMillis()
+    {
+        return sentMillis;
+    }
+
+    /**
+     * The position of the last message shown in the mailbox
+     *
+     * @return the position
+     */
+    public int getPosition()
+    {
+        return position;
+    }
+
+    @Override
+    public String toString()
+    {
+        return sentMillis + "-" + position;
+    }
+}
@@ -0,0 +1,209 @@
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * The part of a message that is the same for every copy of it: who sent it,
+ * when and what it says. A broadcast creates one envelope and every
+ * receiver's Message object points to it, instead of each receiver getting
+ * its own copy of the sender, the text and the Date. Envelopes are never
+ * changed once created, the setters of the Message class swap in a new
+ * envelope instead so that one receiver can never affect another.
+ *
+ * To keep envelopes small, the sender is stored as an id from the Nicknames
+ * table and the sent time as milliseconds since the epoch. The getters turn
+ * them back into a String and a Date. When the MessageArena is on, the text
+ * is kept off the heap and the envelope only knows where it is there.
+ *
+ * @author Duanyang Jing
+ */
+public class MessageEnvelope
+{
+
+    private final int fromId;
+    private final long sentMillis;
+    // null when the text is in the arena
+    private final String message;
+    // where in the arena the text is, moved by compactions
+    private volatile long bodyLocation;
+    private final int bodyLength;
+
+    /**
+     * Constructs a new envelope. None of the arguments can be null
+     *
+     * @param fromNickname the nickname of the user sending the message
+     * @param sentTime the instant of time at which the message was sent
+     * @param message the message string
+     * @throws WhatsAppRuntimeException with CANT_BE_EMPTY_OR_NULL if any of
+     * the arguments is null
+     */
+    public MessageEnvelope(String fromNickname, Date sentTime, String message) throws WhatsAppRuntimeException
+    {
+        this(fromNickname, millisOf(sentTime), message);
+    }
+
+    /**
+     * Constructs a new envelope from a sent time in milliseconds since the
+     * epoch, for loading messages that were stored that way
+     *
+     * @param fromNickname the nickname of the user sending the message
+     * @param sentMillis the instant of time at which the message was sent
+     * @param message the message string
+     * @throws WhatsAppRuntimeException with CANT_BE_EMPTY_OR_NULL if the
+     * nickname or the message is null
+     */
+    public MessageEnvelope(String fromNickname, long sentMillis, String message) throws WhatsAppRuntimeException
+    {
+        this(fromNickname, sentMillis, message, MessageArena.getInstance());
+    }
+
+    /**
+     * Constructs an envelope that keeps its text on the heap even when the
+     * MessageArena is on, for copies that are dropped again soon like the
+     * messages read back from a MailboxArchive page
+     *
+     * @param fromNickname the nickname of the user sending the message
+     * @param sentMillis the instant of time at which the message was sent
+     * @param message the message string
+     * @return the envelope
+     * @throws WhatsAppRuntimeException with CANT_BE_EMPTY_OR_NULL if the
+     * nickname or the message is null
+     */
+    static MessageEnvelope onHeap(String fromNickname, long sentMillis, String message) throws WhatsAppRuntimeException
+    {
+        return new MessageEnvelope(fromNickname, sentMillis, message, null);
+    }
+
+    private MessageEnvelope(String fromNickname, long sentMillis, String message,
+            MessageArena arena) throws WhatsAppRuntimeException
+    {
+        if (fromNickname == null || message == null)
+            throw new WhatsAppRuntimeException(Config.CANT_BE_EMPTY_OR_NULL);
+        this.fromId = Nicknames.idOf(fromNickname);
+        this.sentMillis = sentMillis;
+        if (arena == null)
+        {
+            this.message = message;
+            this.bodyLength = 0;
+        } else
+        {
+            byte[] utf8 = message.getBytes(StandardCharsets.UTF_8);
+            this.message = null;
+            this.bodyLength = utf8.length;
+            this.bodyLocation = arena.store(utf8);
+        }
+    }
+
+    private static long millisOf(Date sentTime) throws WhatsAppRuntimeException
+    {
+        if (sentTime == null)
+            throw new WhatsAppRuntimeException(Config.CANT_BE_EMPTY_OR_NULL);
+        return sentTime.getTime();
+    }
+
+    /**
+     * A getter for the fromNickname
+     *
+     * @return the nickname of the sender
+     */
+    public String getFromNickname()
+    {
+        return Nicknames.nameOf(fromId);
+    }
+
+    /**
+     * A getter for the time at which the message was sent. Every call returns
+     * a new Date object
+     *
+     * @return the Date at which the message was sent
+     */
+    public Date getSentTime()
+    {
+        return new Date(sentMillis);
+    }
+
+    /**
+     * A getter for the time at which the message was sent
+     *
+     * @return the sent time in milliseconds since the epoch
+     */
+    public long getSentMillis()
+    {
+        return sentMillis;
+    }
+
+    /**
+     * A getter for the message string. When a compaction of the MessageArena
+     * drops the segment of the text while it is read, the text is read again
+     * from where the compaction moved it
+     *
+     * @return the message string
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * segment of the text was dropped without the text being moved, which
+     * happens when a compaction did not find the message in any mailbox
+     */
+    public String getMessage() throws WhatsAppRuntimeException
+    {
+        if (message != null)
+        {
+            return message;
+        }
+        long location = bodyLocation;
+        while (true)
+        {
+            String text = MessageArena.getInstance().load(location, bodyLength);
+            if (text != null)
+            {
+                return text;
+            }
+            if (bodyLocation == location)
+            {
+                throw new WhatsAppRuntimeException(String.format(MessageArena.TEXT_LOST,
+                        getFromNickname()));
+            }
+            location = bodyLocation;
+        }
+    }
+
+    /**
+     * Whether the text of this envelope is kept in the MessageArena
+     *
+     * @return true if the text is off the heap
+     */
+    public boolean isInArena()
+    {
+        return message == null;
+    }
+
+    /**
+     * Where the text is in the MessageArena
+     *
+     * @return the location of the text, meaningless unless isInArena
+     */
+    public long getBodyLocation()
+    {
+        return bodyLocation;
+    }
+
+    /**
+     * The length of the text in the MessageArena
+     *
+     * @return the length of the UTF-8 text in bytes, 0 unless isInArena
+     */
+    public int getBodyLength()
+    {
+        return bodyLength;
+    }
+
+    /**
+     * Points this envelope at a copy of its text made by a compaction of the
+     * MessageArena
+     *
+     * @param location the location of the copy
+     */
+    void moveBody(long location)
+    {
+        this.bodyLocation = location;
+    }
+
+}
@@ -0,0 +1,319 @@
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of what the program does, always on: the latency
+ * of every command type with how many succeeded and failed, the number of
+ * receivers of every broadcast, the number of messages readMessage went
+ * through for every read, and how long the phases of the last populateData
+ * took. The stats: command prints them, stats export: prints them in the
+ * Prometheus text format, and when the whatsapp.metrics system property
+ * names a file they are written there in that format every ten seconds, for
+ * a collector to pick up.
+ *
+ * @author Duanyang Jing
+ */
+public class Metrics
+{
+
+    /**
+     * The system property that names the file to export to
+     */
+    public static final String PROPERTY = "whatsapp.metrics";
+    /**
+     * The header of the command table of stats:
+     */
+    public static final String STATS_HEADER = "%-26s %9s %9s %10s %10s %10s %10s\n";
+    /**
+     * A row of the command table of stats:, latencies in microseconds
+     */
+    public static final String STATS_ROW = "%-26s %9d %9d %10.1f %10.1f %10.1f %10.1f\n";
+    /**
+     * The header of the size table of stats:
+     */
+    public static final String SIZES_HEADER = "%-26s %9s %10s %10s %10s %10s\n";
+    /**
+     * A row of the size table of stats:
+     */
+    public static final String SIZES_ROW = "%-26s %9d %10d %10d %10d %10d\n";
+    /**
+     * A row of the populateData phases of stats:
+     */
+    public static final String PHASE_ROW = "%-26s %12.1f ms\n";
+
+    private static final long EXPORT_INTERVAL = 10_000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final CommandParser.Type[] TYPES = CommandParser.Type.values();
+    private static final Histogram[] LATENCIES = new Histogram[TYPES.length];
+    private static final LongAdder[] SUCCESSES = new LongAdder[TYPES.length];
+    private static final LongAdder[] ERRORS = new LongAdder[TYPES.length];
+
+    static
+    {
+        for (int i = 0; i < TYPES.length; ++i)
+        {
+            LATENCIES[i] = new Histogram();
+            SUCCESSES[i] = new LongAdder();
+            ERRORS[i] = new LongAdder();
+        }
+    }
+
+    private static final Histogram FAN_OUT = new Histogram();
+    private static final Histogram MAILBOX_SCAN = new Histogram();
+    private static final LongAdder FAILED_DELIVERIES = new LongAdder();
+    // the phases of the last populateData, in nanoseconds, in the order run
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>();
+
+    private static Thread exporter;
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * The name of a command type in the stats: output and the export
+     *
+     * @param type the command type
+     * @return its keyword, or invalid
+     */
+    public static String label(CommandParser.Type type)
+    {
+        return type.getKeyword() != null ? type.getKeyword() : "invalid";
+    }
+
+    /**
+     * Records a command that was processed
+     *
+     * @param type its type
+     * @param nanos how long it took
+     * @param success false if it failed with an error message or did not
+     * parse
+     */
+    public static void command(CommandParser.Type type, long nanos, boolean success)
+    {
+        LATENCIES[type.ordinal()].record(nanos);
+        (success ? SUCCESSES : ERRORS)[type.ordinal()].increment();
+    }
+
+    /**
+     * Records a message sent to a broadcast list
+     *
+     * @param receivers the number of members it was delivered to
+     */
+    public static void fanOut(int receivers)
+    {
+        FAN_OUT.record(receivers);
+    }
+
+    /**
+     * Records a receiver the FanOutExecutor could not deliver a message to
+     */
+    public static void failedDelivery()
+    {
+        FAILED_DELIVERIES.increment();
+    }
+
+    /**
+     * The number of receivers the FanOutExecutor could not deliver a message
+     * to
+     *
+     * @return the number of failed deliveries
+     */
+    public static long getFailedDeliveries()
+    {
+        return FAILED_DELIVERIES.sum();
+    }
+
+    /**
+     * Records a read of messages
+     *
+     * @param messages the number of messages of the mailbox that were gone
+     * through
+     */
+    public static void mailboxScan(int messages)
+    {
+        MAILBOX_SCAN.record(messages);
+    }
+
+    /**
+     * Records how long a phase of populateData took
+     *
+     * @param phase the name of the phase
+     * @param nanos how long it took
+     */
+    public static void phase(String phase, long nanos)
+    {
+        synchronized (PHASES)
+        {
+            PHASES.put(phase, nanos);
+        }
+    }
+
+    /**
+     * Forgets the phases of the last populateData, for a new one to start
+     */
+    public static void clearPhases()
+    {
+        synchronized (PHASES)
+        {
+            PHASES.clear();
+        }
+    }
+
+    /**
+     * Prints the metrics in tables, for stats:
+     *
+     * @param out where to print them
+     */
+    public static void print(PrintStream out)
+    {
+        out.printf(STATS_HEADER, "command", "ok", "errors", "p50 us", "p90 us", "p99 us", "max us");
+        for (int i = 0; i < TYPES.length; ++i)
+        {
+            Histogram h = LATENCIES[i];
+            if (h.getCount() > 0)
+            {
+                out.printf(STATS_ROW, label(TYPES[i]), SUCCESSES[i].sum(), ERRORS[i].sum(),
+                        h.percentile(50) / 1000.0, h.percentile(90) / 1000.0,
+                        h.percentile(99) / 1000.0, h.getMax() / 1000.0);
+            }
+        }
+        out.printf(SIZES_HEADER, "size", "count", "p50", "p90", "p99", "max");
+        printSizes(out, "broadcast fan-out", FAN_OUT);
+        printSizes(out, "mailbox scan", MAILBOX_SCAN);
+        for (Map.Entry<String, Long> phase : phases())
+        {
+            out.printf(PHASE_ROW, phase.getKey(), phase.getValue() / 1e6);
+        }
+    }
+
+    private static void printSizes(PrintStream out, String name, Histogram h)
+    {
+        out.printf(SIZES_ROW, name, h.getCount(), h.percentile(50), h.percentile(90),
+                h.percentile(99), h.getMax());
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format
+     *
+     * @param out where to write them
+     * @throws IOException if writing fails
+     */
+    public static void export(Appendable out) throws IOException
+    {
+        out.append("# TYPE whatsapp_command_seconds summary\n");
+        for (int i = 0; i < TYPES.length; ++i)
+        {
+            exportSummary(out, "whatsapp_command_seconds",
+                    "command=\"" + label(TYPES[i]) + "\"", LATENCIES[i], 1e-9);
+        }
+        out.append("# TYPE whatsapp_commands_total counter\n");
+        for (int i = 0; i < TYPES.length; ++i)
+        {
+            out.append("whatsapp_commands_total{command=\"").append(label(TYPES[i])).
+                    append("\",result=\"ok\"} ").append(Long.toString(SUCCESSES[i].sum())).
+                    append('\n');
+            out.append("whatsapp_commands_total{command=\"").append(label(TYPES[i])).
+                    append("\",result=\"error\"} ").append(Long.toString(ERRORS[i].sum())).
+                    append('\n');
+        }
+        out.append("# TYPE whatsapp_broadcast_fanout summary\n");
+        exportSummary(out, "whatsapp_broadcast_fanout", null, FAN_OUT, 1);
+        out.append("# TYPE whatsapp_mailbox_scan summary\n");
+        exportSummary(out, "whatsapp_mailbox_scan", null, MAILBOX_SCAN, 1);
+        out.append("# TYPE whatsapp_failed_deliveries_total counter\n");
+        out.append("whatsapp_failed_deliveries_total ").
+                append(Long.toString(FAILED_DELIVERIES.sum())).append('\n');
+        out.append("# TYPE whatsapp_populate_phase_seconds gauge\n");
+        for (Map.Entry<String, Long> phase : phases())
+        {
+            out.append("whatsapp_populate_phase_seconds{phase=\"").append(phase.getKey()).
+                    append("\"} ").append(Double.toString(phase.getValue() / 1e9)).append('\n');
+        }
+    }
+
+    private static void exportSummary(Appendable out, String name, String labels,
+            Histogram h, double scale) throws IOException
+    {
+        String prefix = labels == null ? "" : labels + ",";
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        long count = h.getCount();
+        for (double q : QUANTILES)
+        {
+            out.append(name).append("{").append(prefix).append("quantile=\"").
+                    append(Double.toString(q)).append("\"} ").
+                    append(count == 0 ? "NaN" : Double.toString(h.percentile(q * 100) * scale)).
+                    append('\n');
+        }
+        out.append(name).append("_sum").append(suffix).append(' ').
+                append(Double.toString(h.getSum() * scale)).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').
+                append(Long.toString(count)).append('\n');
+    }
+
+    private static List<Map.Entry<String, Long>> phases()
+    {
+        synchronized (PHASES)
+        {
+            return new ArrayList<>(PHASES.entrySet());
+        }
+    }
+
+    /**
+     * Starts writing the metrics to the file named by the whatsapp.metrics
+     * system property every ten seconds, if it names one. The file is
+     * replaced in one step so a collector never reads half of it
+     */
+    public static synchronized void exportFromProperty()
+    {
+        String path = System.getProperty(PROPERTY);
+        if (path == null || path.isEmpty() || exporter != null)
+        {
+            return;
+        }
+        Path target = Paths.get(path);
+        exporter = new Thread(() -> exportLoop(target), "metrics-exporter");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    private static void exportLoop(Path target)
+    {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        while (true)
+        {
+            try
+            {
+                try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+                {
+                    export(out);
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex)
+            {
+                // try again next time, the collector sees the last good file
+            }
+            try
+            {
+                Thread.sleep(EXPORT_INTERVAL);
+            } catch (InterruptedException ex)
+            {
+                return;
+            }
+        }
+    }
+}
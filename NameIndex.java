@@ -0,0 +1,267 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A case insensitive substring index over the first and last names of users.
+ * Every user gets a sequence number in the order it is added, and every
+ * lowercased name is cut into trigrams (runs of three characters) that map to
+ * the sequence numbers of the users whose name contains them. A search for a
+ * word of at least three characters only has to look at the users which have
+ * every trigram of the word, and checks just those with String.contains.
+ * Shorter words have no trigrams and fall back to checking every user.
+ *
+ * Results come out in the order the users were added. The names of a user
+ * that is already indexed must not change. A removed user only leaves its
+ * sequence number empty, the postings are cleaned up all at once when more
+ * than half of the numbers are empty. Searches share a lock that adding and
+ * removing users take exclusively, so they may run while users change.
+ *
+ * @author Duanyang Jing
+ */
+public class NameIndex
+{
+
+    // users by sequence number, null once removed
+    private final List<User> users = new ArrayList<>();
+    private final List<String> firstNames = new ArrayList<>();
+    private final List<String> lastNames = new ArrayList<>();
+    private final Map<User, Integer> sequence = new IdentityHashMap<>();
+    private final Map<Long, Postings> firstNameTrigrams = new HashMap<>();
+    private final Map<Long, Postings> lastNameTrigrams = new HashMap<>();
+    // sequence numbers of removed users
+    private int removed;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // an ascending list of sequence numbers
+    private static class Postings
+    {
+
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value)
+        {
+            // a name can have the same trigram more than once
+            if (size > 0 && values[size - 1] == value)
+            {
+                return;
+            }
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private boolean contains(int value)
+        {
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+    }
+
+    /**
+     * Adds a user at the end of the index
+     *
+     * @param user the user to add
+     */
+    public void add(User user)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            append(user);
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a user from the index
+     *
+     * @param user the user to remove
+     */
+    public void remove(User user)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            Integer seq = sequence.remove(user);
+            if (seq == null)
+            {
+                return;
+            }
+            users.set(seq, null);
+            firstNames.set(seq, null);
+            lastNames.set(seq, null);
+            if (++removed * 2 > users.size())
+            {
+                renumber();
+            }
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every user from the index
+     */
+    public void clear()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            reset();
+        } finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void append(User user)
+    {
+        int seq = users.size();
+        String first = lower(user.getFirstName());
+        String last = lower(user.getLastName());
+        users.add(user);
+        firstNames.add(first);
+        lastNames.add(last);
+        sequence.put(user, seq);
+        post(firstNameTrigrams, first, seq);
+        post(lastNameTrigrams, last, seq);
+    }
+
+    private void reset()
+    {
+        users.clear();
+        firstNames.clear();
+        lastNames.clear();
+        sequence.clear();
+        firstNameTrigrams.clear();
+        lastNameTrigrams.clear();
+        removed = 0;
+    }
+
+    // indexes the users that are left again, without the empty numbers
+    private void renumber()
+    {
+        List<User> left = new ArrayList<>(users.size() - removed);
+        for (User user : users)
+        {
+            if (user != null)
+            {
+                left.add(user);
+            }
+        }
+        reset();
+        for (User user : left)
+        {
+            append(user);
+        }
+    }
+
+    /**
+     * Finds the users whose first or last name contains the word, ignoring
+     * case
+     *
+     * @param word the word to look for
+     * @param searchByFirstName true to search the first names, false for the
+     * last names
+     * @return the matching users in the order they were added
+     */
+    public List<User> search(String word, boolean searchByFirstName)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return find(lower(word), searchByFirstName);
+        } finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<User> find(String query, boolean searchByFirstName)
+    {
+        List<String> names = searchByFirstName ? firstNames : lastNames;
+        List<User> result = new ArrayList<>();
+        if (query.length() < 3)
+        {
+            for (int seq = 0; seq < users.size(); ++seq)
+            {
+                if (users.get(seq) != null && names.get(seq).contains(query))
+                {
+                    result.add(users.get(seq));
+                }
+            }
+            return result;
+        }
+
+        Map<Long, Postings> trigrams = searchByFirstName ? firstNameTrigrams : lastNameTrigrams;
+        List<Postings> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= query.length(); ++i)
+        {
+            Postings postings = trigrams.get(trigram(query, i));
+            if (postings == null || postings.size == 0)
+            {
+                return result;
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(p -> p.size));
+
+        Postings smallest = lists.get(0);
+        candidates:
+        for (int i = 0; i < smallest.size; ++i)
+        {
+            int seq = smallest.values[i];
+            if (users.get(seq) == null)
+            {
+                continue;
+            }
+            for (int j = 1; j < lists.size(); ++j)
+            {
+                if (!lists.get(j).contains(seq))
+                {
+                    continue candidates;
+                }
+            }
+            // the trigrams can all be there without being in a row
+            if (names.get(seq).contains(query))
+            {
+                result.add(users.get(seq));
+            }
+        }
+        return result;
+    }
+
+    private static String lower(String name)
+    {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static long trigram(String s, int from)
+    {
+        return ((long) s.charAt(from) << 32) | ((long) s.charAt(from + 1) << 16)
+                | s.charAt(from + 2);
+    }
+
+    private static void post(Map<Long, Postings> trigrams, String name, int seq)
+    {
+        for (int i = 0; i + 3 <= name.length(); ++i)
+        {
+            trigrams.computeIfAbsent(trigram(name, i), k -> new Postings()).
+                    add(seq);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table which gives every nickname that appears in a message a small int
+ * id, so that messages can store ids instead of references to their own
+ * copies of the same strings. Ids are handed out densely from 0 and are
+ * never reused. Looking up a name by id never blocks.
+ *
+ * @author Duanyang Jing
+ */
+public class Nicknames
+{
+
+    /**
+     * The id standing for a null nickname
+     */
+    public static final int NONE = -1;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[1024];
+    private static int count = 0;
+
+    private Nicknames()
+    {
+    }
+
+    /**
+     * Returns the id of a nickname, giving it a new id if it has none yet
+     *
+     * @param nickname the nickname, can be null
+     * @return the id of the nickname or NONE for null
+     */
+    public static int idOf(String nickname)
+    {
+        if (nickname == null)
+        {
+            return NONE;
+        }
+        Integer id = ids.get(nickname);
+        return id != null ? id : assign(nickname);
+    }
+
+    /**
+     * Returns the nickname with the given id
+     *
+     * @param id an id returned by idOf
+     * @return the nickname or null for NONE
+     */
+    public static String nameOf(int id)
+    {
+        return id == NONE ? null : names[id];
+    }
+
+    private static synchronized int assign(String nickname)
+    {
+        Integer id = ids.get(nickname);
+        if (id != null)
+        {
+            return id;
+        }
+        String[] table = names;
+        if (count == table.length)
+        {
+            table = Arrays.copyOf(table, count * 2);
+        }
+        table[count] = nickname;
+        // publish the name before the id can be seen by anyone
+        names = table;
+        ids.put(nickname, count);
+        return count++;
+    }
+}
@@ -0,0 +1,177 @@
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Collects the rows printed by a command (messages for the read messages
+ * commands, users for the search commands) and writes them to the console in
+ * one go when the command is done, instead of one printf per row. The rows
+ * are rendered with templates that are split at their %s markers once, so
+ * no format string is parsed per row. The StringBuilder behind the buffer is
+ * reused by every command run on the same thread, and so is a small cache of
+ * printed sent times, since messages sent in the same second print the same
+ * time and broadcasts print one time many times over.
+ *
+ * @author Duanyang Jing
+ */
+public class OutputBuffer
+{
+
+    /**
+     * The template for the rows of the read messages commands
+     */
+    public static final Template MESSAGE_ROW = new Template(Config.MESSAGE_FORMAT);
+    /**
+     * The template for the rows of the search commands
+     */
+    public static final Template SEARCH_ROW = new Template(Config.USER_DISPLAY_FOR_SEARCH);
+
+    // write out early if a command prints more than this many characters, so a
+    // huge listing does not keep the whole output in memory
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(8192));
+
+    // Date.toString() only shows whole seconds, so cache it by epoch second
+    private static final int TIME_CACHE_SIZE = 1024;
+    private static final ThreadLocal<long[]> TIME_CACHE_KEYS =
+            ThreadLocal.withInitial(() -> new long[TIME_CACHE_SIZE]);
+    private static final ThreadLocal<String[]> TIME_CACHE_TEXTS =
+            ThreadLocal.withInitial(() -> new String[TIME_CACHE_SIZE]);
+
+    private final PrintStream out;
+    private final StringBuilder buffer;
+    private final long[] timeKeys;
+    private final String[] timeTexts;
+
+    /**
+     * A format string containing only %s markers, split at those markers
+     * ahead of time. Appending a row gives the same text as String.format
+     * with the same arguments
+     */
+    public static class Template
+    {
+
+        private final String[] literals;
+
+        /**
+         * Splits a format string at its %s markers
+         *
+         * @param format a format string whose only conversions are %s
+         */
+        public Template(String format)
+        {
+            List<String> parts = new ArrayList<>();
+            int from = 0;
+            int marker;
+            while ((marker = format.indexOf("%s", from)) >= 0)
+            {
+                parts.add(format.substring(from, marker));
+                from = marker + 2;
+            }
+            parts.add(format.substring(from));
+            literals = parts.toArray(new String[0]);
+        }
+
+        /**
+         * Appends the template with its markers replaced by the arguments in
+         * order. A null argument is written as "null", like String.format
+         * does
+         *
+         * @param sb the builder to append to
+         * @param args one argument per %s marker
+         */
+        public void appendTo(StringBuilder sb, String... args)
+        {
+            if (args.length != literals.length - 1)
+            {
+                throw new IllegalArgumentException("Expected " + (literals.length - 1)
+                        + " arguments, got " + args.length);
+            }
+            for (int i = 0; i < args.length; ++i)
+            {
+                sb.append(literals[i]).append(args[i]);
+            }
+            sb.append(literals[args.length]);
+        }
+    }
+
+    /**
+     * Starts a new buffer for a command
+     *
+     * @param out the stream the buffered rows will be written to
+     */
+    public OutputBuffer(PrintStream out)
+    {
+        this.out = out;
+        this.buffer = BUFFER.get();
+        this.buffer.setLength(0);
+        this.timeKeys = TIME_CACHE_KEYS.get();
+        this.timeTexts = TIME_CACHE_TEXTS.get();
+    }
+
+    /**
+     * Adds a row for a message in the MESSAGE_FORMAT
+     *
+     * @param message the message to add
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text of the message was lost
+     */
+    public void appendMessage(Message message) throws WhatsAppRuntimeException
+    {
+        MESSAGE_ROW.appendTo(buffer, message.getFromNickname(), message.
+                getToNickname(), message.getMessage(), sentTimeText(message.
+                getEnvelope().getSentMillis()));
+        flushIfFull();
+    }
+
+    /**
+     * Adds a row for a user in the USER_DISPLAY_FOR_SEARCH format
+     *
+     * @param user the user found by the search
+     * @param isFriend whether the user is a friend of the one searching
+     */
+    public void appendSearchResult(User user, boolean isFriend)
+    {
+        SEARCH_ROW.appendTo(buffer, user.getLastName(), user.getFirstName(),
+                user.getNickname(), isFriend ? "yes" : "no");
+        flushIfFull();
+    }
+
+    /**
+     * Writes everything added so far to the stream
+     */
+    public void flush()
+    {
+        if (buffer.length() > 0)
+        {
+            out.append(buffer);
+            buffer.setLength(0);
+        }
+        out.flush();
+    }
+
+    // the sent time as Date.toString() prints it
+    private String sentTimeText(long millis)
+    {
+        long second = Math.floorDiv(millis, 1000L);
+        int slot = (int) Math.floorMod(second, (long) TIME_CACHE_SIZE);
+        if (timeTexts[slot] == null || timeKeys[slot] != second)
+        {
+            timeKeys[slot] = second;
+            timeTexts[slot] = new Date(millis).toString();
+        }
+        return timeTexts[slot];
+    }
+
+    private void flushIfFull()
+    {
+        if (buffer.length() >= FLUSH_THRESHOLD)
+        {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Writes a synthetic prepopulation file for testing at scale. The file has
+ * the users first, then their friend and broadcast lists, then the messages,
+ * so PrepopulationLoader loads it in its fast phased way. Everything about a
+ * user is drawn from a random generator seeded with the seed and the number
+ * of the user, so a user's friends can be drawn again while writing its
+ * messages instead of being kept. Only one user is held in memory at a time,
+ * and the size of the file does not change how much memory it takes.
+ *
+ * The parameters, given on the command line as name=value:
+ *
+ * - users: the number of users
+ * - friendsMin, friendsMax, friendsAlpha: the number of friends of a user
+ * follows a power law with this exponent between the minimum and maximum
+ * - skew: how much the friends are drawn towards the first users, 1 for not
+ * at all. With more than 1 a few users are the friends of many
+ * - lists: the mean number of broadcast lists of a user
+ * - listMin, listMax, listAlpha: the size of a list follows a power law with
+ * this exponent between the minimum and maximum, and is at most the number
+ * of friends. The members are friends of the owner
+ * - messages: the number of messages in the file, sent by users in
+ * proportion to how many friends they have
+ * - listShare: the share of messages sent to broadcast lists
+ * - readRatio: the share of received messages marked as read
+ * - seed: the seed, the same parameters and seed give the same file
+ *
+ * The file is written to the path given after the parameters, or to the
+ * standard output if there is none.
+ *
+ * @author Duanyang Jing
+ */
+public class PrepopulationGenerator
+{
+
+    /**
+     * This is the usage string to be shown if the command line arguments are
+     * wrong
+     */
+    public static final String USAGE = "Usage: java PrepopulationGenerator [<parameter>=<value>...] [<path to the output file>]\n";
+
+    private static final String[] FIRST_NAMES = {"patricia", "gary", "arthur",
+        "ralph", "lois", "katherine", "joseph", "mary", "james", "linda",
+        "robert", "susan", "michael", "karen", "david", "nancy", "thomas",
+        "betty", "daniel", "helen", "paul", "sandra", "mark", "donna", "steven",
+        "carol", "andrew", "ruth", "kenneth", "sharon"};
+    private static final String[] LAST_NAMES = {"reed", "hanson", "fisher",
+        "dixon", "day", "elliott", "hart", "smith", "johnson", "williams",
+        "brown", "jones", "miller", "davis", "garcia", "wilson", "anderson",
+        "taylor", "thomas", "moore", "martin", "jackson", "thompson", "white",
+        "lopez", "lee", "harris", "clark", "lewis", "walker"};
+    private static final String[] WORDS = {"hi", "hello", "how", "are", "you",
+        "lets", "meet", "today", "tomorrow", "good", "night", "morning", "see",
+        "at", "the", "office", "lunch", "call", "me", "later", "thanks", "ok",
+        "on", "my", "way", "running", "late", "sounds", "great", "bye"};
+
+    // the streams of random numbers of a user
+    private static final int PROFILE = 0;
+    private static final int MESSAGES = 1;
+
+    private final int users;
+    private final int friendsMin;
+    private final int friendsMax;
+    private final double friendsAlpha;
+    private final double skew;
+    private final double lists;
+    private final int listMin;
+    private final int listMax;
+    private final double listAlpha;
+    private final long messages;
+    private final double listShare;
+    private final double readRatio;
+    private final long seed;
+
+    private final SimpleDateFormat dateFormat =
+            new SimpleDateFormat(PrepopulationLoader.DATE_FORMAT);
+    private final long start;
+
+    // the friends and lists of one user, drawn again whenever needed
+    private static class Profile
+    {
+
+        private final int[] friends;
+        private final int[][] lists;
+
+        private Profile(int[] friends, int[][] lists)
+        {
+            this.friends = friends;
+            this.lists = lists;
+        }
+    }
+
+    /**
+     * Constructs a generator
+     *
+     * @param parameters the parameters by name, see the class description.
+     * Missing ones take their default
+     * @throws IllegalArgumentException if a parameter is unknown or out of
+     * range
+     */
+    public PrepopulationGenerator(Map<String, String> parameters)
+    {
+        Map<String, String> p = new LinkedHashMap<>();
+        p.put("users", "10000");
+        p.put("friendsMin", "5");
+        p.put("friendsMax", "1000");
+        p.put("friendsAlpha", "2.5");
+        p.put("skew", "1.5");
+        p.put("lists", "2");
+        p.put("listMin", "2");
+        p.put("listMax", "200");
+        p.put("listAlpha", "2");
+        p.put("messages", "1000000");
+        p.put("listShare", "0.1");
+        p.put("readRatio", "0.8");
+        p.put("seed", "1");
+        for (Map.Entry<String, String> entry : parameters.entrySet())
+        {
+            if (p.put(entry.getKey(), entry.getValue()) == null)
+            {
+                throw new IllegalArgumentException(entry.getKey());
+            }
+        }
+        users = Integer.parseInt(p.get("users"));
+        friendsMin = Integer.parseInt(p.get("friendsMin"));
+        friendsMax = Math.min(Integer.parseInt(p.get("friendsMax")), users - 1);
+        friendsAlpha = Double.parseDouble(p.get("friendsAlpha"));
+        skew = Double.parseDouble(p.get("skew"));
+        lists = Double.parseDouble(p.get("lists"));
+        listMin = Integer.parseInt(p.get("listMin"));
+        listMax = Integer.parseInt(p.get("listMax"));
+        listAlpha = Double.parseDouble(p.get("listAlpha"));
+        messages = Long.parseLong(p.get("messages"));
+        listShare = Double.parseDouble(p.get("listShare"));
+        readRatio = Double.parseDouble(p.get("readRatio"));
+        seed = Long.parseLong(p.get("seed"));
+        if (users < 2 || friendsMin < 0 || friendsMin > friendsMax || friendsAlpha <= 1
+                || skew < 1 || lists < 0 || listMin < 1 || listMin > listMax
+                || listAlpha <= 1 || messages < 0 || listShare < 0 || listShare > 1
+                || readRatio < 0 || readRatio > 1)
+        {
+            throw new IllegalArgumentException();
+        }
+        try
+        {
+            start = dateFormat.parse("01/01/2016 00:00:00").getTime();
+        } catch (ParseException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param args the command line arguments: the parameters and optionally
+     * the path to the output file
+     */
+    public static void main(String[] args)
+    {
+        PrintStream console = Config.getInstance().getConsoleOutput();
+        Map<String, String> parameters = new LinkedHashMap<>();
+        String output = null;
+        for (int i = 0; i < args.length; ++i)
+        {
+            int equals = args[i].indexOf('=');
+            if (equals > 0)
+            {
+                parameters.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+            } else if (i == args.length - 1)
+            {
+                output = args[i];
+            } else
+            {
+                console.printf(USAGE);
+                System.exit(1);
+            }
+        }
+        PrepopulationGenerator generator = null;
+        try
+        {
+            generator = new PrepopulationGenerator(parameters);
+        } catch (IllegalArgumentException ex)
+        {
+            console.printf(USAGE);
+            System.exit(1);
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(output == null
+                ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(output),
+                Charset.defaultCharset()), 1 << 16))
+        {
+            generator.write(out);
+        } catch (IOException ex)
+        {
+            console.printf(Config.ERROR_IO);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the file
+     *
+     * @param out where to write it to
+     * @throws IOException if writing fails
+     */
+    public void write(Writer out) throws IOException
+    {
+        StringBuilder line = new StringBuilder(256);
+        for (int k = 0; k < users; ++k)
+        {
+            SplittableRandom random = random(k, PROFILE);
+            line.setLength(0);
+            line.append("user,").append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).
+                    append(',').append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).
+                    append(',').append(nickname(k)).append(",p").append(k).append('\n');
+            out.append(line);
+        }
+
+        // messages are shared out in proportion to the number of friends,
+        // which takes the total number of friends
+        long totalFriends = 0;
+        for (int k = 0; k < users; ++k)
+        {
+            Profile profile = profile(k);
+            totalFriends += profile.friends.length;
+            writeLists(out, line, k, profile);
+        }
+
+        long sent = 0;
+        long friendsSoFar = 0;
+        long time = start;
+        for (int k = 0; k < users; ++k)
+        {
+            Profile profile = profile(k);
+            if (profile.friends.length == 0)
+            {
+                continue;
+            }
+            friendsSoFar += profile.friends.length;
+            long due = (long) ((double) messages * friendsSoFar / totalFriends);
+            SplittableRandom random = random(k, MESSAGES);
+            for (; sent < due; ++sent)
+            {
+                time += random.nextInt(60) * 1000L;
+                writeMessage(out, line, k, profile, random, time);
+            }
+        }
+    }
+
+    private void writeLists(Writer out, StringBuilder line, int k, Profile profile) throws IOException
+    {
+        if (profile.friends.length > 0)
+        {
+            line.setLength(0);
+            line.append("flist,").append(nickname(k));
+            for (int friend : profile.friends)
+            {
+                line.append(',').append(nickname(friend));
+            }
+            out.append(line.append('\n'));
+        }
+        for (int list = 0; list < profile.lists.length; ++list)
+        {
+            line.setLength(0);
+            line.append("bcast,").append(nickname(k)).append(",\"list ").append(list).
+                    append("\",").append(listNickname(k, list));
+            for (int member : profile.lists[list])
+            {
+                line.append(',').append(nickname(member));
+            }
+            out.append(line.append('\n'));
+        }
+    }
+
+    private void writeMessage(Writer out, StringBuilder line, int k, Profile profile,
+            SplittableRandom random, long time) throws IOException
+    {
+        line.setLength(0);
+        line.append("message,").append(nickname(k)).append(',');
+        int list = profile.lists.length > 0 && random.nextDouble() < listShare
+                ? random.nextInt(profile.lists.length) : -1;
+        if (list < 0)
+        {
+            line.append(nickname(profile.friends[random.nextInt(profile.friends.length)]));
+        } else
+        {
+            line.append(listNickname(k, list));
+        }
+        line.append(',').append(dateFormat.format(time)).append(",\"");
+        int words = 1 + random.nextInt(8);
+        for (int w = 0; w < words; ++w)
+        {
+            line.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        line.append('"');
+        int receivers = list < 0 ? 1 : profile.lists[list].length;
+        for (int r = 0; r < receivers; ++r)
+        {
+            line.append(random.nextDouble() < readRatio ? ",read" : ",unread");
+        }
+        out.append(line.append('\n'));
+    }
+
+    // draws the friends and lists of a user, the same every time
+    private Profile profile(int k)
+    {
+        SplittableRandom random = random(k, PROFILE);
+        // the names, drawn first when writing the user line
+        random.nextInt(LAST_NAMES.length);
+        random.nextInt(FIRST_NAMES.length);
+
+        int degree = powerLaw(random, friendsMin, friendsMax, friendsAlpha);
+        Set<Integer> chosen = new HashSet<>();
+        int[] friends = new int[degree];
+        int found = 0;
+        for (int attempt = 0; found < degree && attempt < 20 * degree; ++attempt)
+        {
+            int friend = (int) (users * Math.pow(random.nextDouble(), skew));
+            if (friend != k && chosen.add(friend))
+            {
+                friends[found++] = friend;
+            }
+        }
+        // when the skew makes the draws repeat too much, take the next users
+        for (int friend = (k + 1) % users; found < degree; friend = (friend + 1) % users)
+        {
+            if (friend != k && chosen.add(friend))
+            {
+                friends[found++] = friend;
+            }
+        }
+
+        int count = degree == 0 ? 0 : poisson(random, lists);
+        int[][] ownLists = new int[count][];
+        int[] shuffled = friends.clone();
+        for (int list = 0; list < count; ++list)
+        {
+            int size = Math.min(powerLaw(random, listMin, listMax, listAlpha), degree);
+            // the first size friends of a partial shuffle
+            for (int i = 0; i < size; ++i)
+            {
+                int j = i + random.nextInt(degree - i);
+                int swap = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swap;
+            }
+            ownLists[list] = Arrays.copyOf(shuffled, size);
+        }
+        return new Profile(friends, ownLists);
+    }
+
+    private SplittableRandom random(int k, int stream)
+    {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + k * 2L + stream);
+    }
+
+    // a power law distributed integer between min and max
+    private static int powerLaw(SplittableRandom random, int min, int max, double alpha)
+    {
+        if (min == 0)
+        {
+            return powerLaw(random, 1, max + 1, alpha) - 1;
+        }
+        double value = min * Math.pow(1 - random.nextDouble(), -1 / (alpha - 1));
+        return (int) Math.min(value, max);
+    }
+
+    // a Poisson distributed integer, for small means
+    private static int poisson(SplittableRandom random, double mean)
+    {
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit)
+        {
+            product *= random.nextDouble();
+            ++count;
+        }
+        return count;
+    }
+
+    private static String nickname(int k)
+    {
+        return "u" + k;
+    }
+
+    private static String listNickname(int k, int list)
+    {
+        return "u" + k + "_b" + list;
+    }
+}
@@ -0,0 +1,526 @@
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Loads the prepopulation file. The file is memory mapped and cut into
+ * chunks at line boundaries. A few chunks at a time are decoded in parallel
+ * and their lines applied before the next ones are read, so only those lines
+ * are in memory at once. The lines of a batch are applied in three phases:
+ * user lines are parsed in parallel and added to the user directory in file
+ * order, flist and bcast lines are applied in file order, and finally message
+ * lines are parsed in parallel, and the messages of every mailbox are merged
+ * into it in file order, the mailboxes in parallel.
+ *
+ * The phases only give the same result as reading the file top to bottom if
+ * all user lines come before all flist/bcast lines, which in turn come before
+ * all message lines. That is how the files are laid out in practice. From
+ * the first line that breaks this order on, the lines are applied one at a
+ * time, exactly like the original loader did. Either way, when a line is bad
+ * the exception thrown is the one the first bad line in the file would have
+ * caused.
+ *
+ * @author Duanyang Jing
+ */
+public class PrepopulationLoader
+{
+
+    /**
+     * The date format used by message lines
+     */
+    public static final String DATE_FORMAT = "MM/dd/yyyy HH:mm:ss";
+
+    // files are cut into chunks of about this many bytes
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    // the number of chunks decoded and applied together
+    private static final int BATCH_CHUNKS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // how far ahead to look for the end of a line when cutting chunks
+    private static final int SCAN_WINDOW = 64 * 1024;
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_PARSER =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat(DATE_FORMAT));
+
+    private static final int USER = 0;
+    private static final int LIST = 1;
+    private static final int MESSAGE = 2;
+    private static final int UNKNOWN = 3;
+
+    // a message to be appended to the mailbox of a user
+    private static class Delivery
+    {
+
+        private final User user;
+        private final Message message;
+
+        private Delivery(User user, Message message)
+        {
+            this.user = user;
+            this.message = message;
+        }
+    }
+
+    private PrepopulationLoader()
+    {
+    }
+
+    /**
+     * Populate data from the file with the given path. See
+     * Helper.populateData for the exceptions thrown
+     *
+     * @param filename the path to the input file
+     * @throws FileNotFoundException this is thrown if the file is not found
+     * @throws IOException this is thrown if some error occurs while reading the
+     * input file
+     * @throws WhatsAppRuntimeException this is thrown if any invalid data is
+     * used to construct any of the WhatsApp objects or a line is encountered
+     * that does not begin with any of the four words mentioned in the
+     * specification
+     * @throws ParseException this exception is thrown if some issue occurs
+     * while parsing the date string
+     */
+    public static void load(String filename) throws FileNotFoundException, IOException, WhatsAppRuntimeException, ParseException
+    {
+        Batches batches = new Batches(UserDirectory.getInstance());
+        try (FileInputStream in = new FileInputStream(new File(filename));
+                FileChannel channel = in.getChannel())
+        {
+            long size = channel.size();
+            long position = 0;
+            while (position < size)
+            {
+                long start = System.nanoTime();
+                List<MappedByteBuffer> chunks = new ArrayList<>();
+                while (chunks.size() < BATCH_CHUNKS && position < size)
+                {
+                    long next = nextLineStart(channel, Math.min(position + CHUNK_SIZE, size), size);
+                    chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            next - position));
+                    position = next;
+                }
+                List<String> lines = readLines(chunks);
+                batches.phase("read lines", start);
+                if (!batches.apply(lines))
+                {
+                    batches.record();
+                    throw new WhatsAppRuntimeException();
+                }
+            }
+        }
+        batches.record();
+    }
+
+    // applies the lines of the file one batch after the other
+    private static class Batches
+    {
+
+        private final UserDirectory users;
+        // the last kind of line applied in phases, or UNKNOWN once a line
+        // was out of order and the lines go one at a time
+        private int highest = USER;
+        // phase name -> nanoseconds spent in it so far
+        private final Map<String, Long> phases = new LinkedHashMap<>();
+
+        private Batches(UserDirectory users)
+        {
+            this.users = users;
+        }
+
+        // applies the lines up to the first one that does not start with a
+        // known word and returns whether there was none
+        private boolean apply(List<String> lines) throws WhatsAppRuntimeException, ParseException, IOException
+        {
+            long start = System.nanoTime();
+            int[] types = new int[lines.size()];
+            int end = lines.size();
+            for (int i = 0; i < lines.size(); ++i)
+            {
+                types[i] = typeOf(lines.get(i));
+                if (types[i] == UNKNOWN)
+                {
+                    end = i;
+                    break;
+                }
+            }
+
+            int ordered = 0;
+            while (ordered < end && types[ordered] >= highest)
+            {
+                highest = types[ordered++];
+            }
+            if (ordered > 0)
+            {
+                loadUsers(lines, types, ordered, users);
+                start = phase("users", start);
+                loadLists(lines, types, ordered, users);
+                start = phase("lists", start);
+                loadMessages(lines, types, ordered, users);
+                start = phase("messages", start);
+            }
+            if (ordered < end)
+            {
+                highest = UNKNOWN;
+                for (int i = ordered; i < end; ++i)
+                {
+                    applyLine(lines.get(i).split(","), users);
+                }
+                phase("lines in file order", start);
+            }
+            return end == lines.size();
+        }
+
+        // adds the time since start to a phase and returns the time now
+        private long phase(String name, long start)
+        {
+            long now = System.nanoTime();
+            phases.merge(name, now - start, Long::sum);
+            return now;
+        }
+
+        private void record()
+        {
+            for (Map.Entry<String, Long> phase : phases.entrySet())
+            {
+                Metrics.phase(phase.getKey(), phase.getValue());
+            }
+        }
+    }
+
+    /**
+     * Applies a single line of the prepopulation file, already split at the
+     * commas
+     *
+     * @param parts the comma separated parts of the line
+     * @param users the directory to look up and add users in
+     * @throws WhatsAppRuntimeException if the line holds invalid data or does
+     * not start with one of the four known words
+     * @throws ParseException if the date of a message line cannot be parsed
+     */
+    public static void applyLine(String[] parts, UserDirectory users) throws WhatsAppRuntimeException, ParseException
+    {
+        switch (parts[0])
+        {
+            case "user":
+                users.add(parseUser(parts));
+                break;
+            case "flist":
+            case "bcast":
+                applyList(parts, users);
+                break;
+            case "message":
+                for (Delivery delivery : parseMessage(parts, users))
+                {
+                    delivery.user.getMessages().add(delivery.message);
+                }
+                break;
+            default:
+                throw new WhatsAppRuntimeException();
+        }
+    }
+
+    // users are built in parallel but added in file order, so the first of two
+    // users with the same nickname still wins
+    private static void loadUsers(List<String> lines, int[] types, int end,
+            UserDirectory users) throws WhatsAppRuntimeException, ParseException, IOException
+    {
+        Object[] parsed = new Object[end];
+        IntStream.range(0, end).parallel().filter(i -> types[i] == USER).
+                forEach(i ->
+                {
+                    try
+                    {
+                        parsed[i] = parseUser(lines.get(i).split(","));
+                    } catch (Throwable ex)
+                    {
+                        parsed[i] = ex;
+                    }
+                });
+        for (int i = 0; i < end; ++i)
+        {
+            if (types[i] == USER)
+            {
+                rethrowIfFailed(parsed[i]);
+                users.add((User) parsed[i]);
+            }
+        }
+    }
+
+    private static void loadLists(List<String> lines, int[] types, int end,
+            UserDirectory users) throws WhatsAppRuntimeException
+    {
+        for (int i = 0; i < end; ++i)
+        {
+            if (types[i] == LIST)
+            {
+                applyList(lines.get(i).split(","), users);
+            }
+        }
+    }
+
+    // no list changes once messages start, so they can be parsed in parallel
+    // against a directory that is only read from. The messages for every
+    // mailbox are then appended to it in file order, the mailboxes in
+    // parallel, up to the first line that cannot be delivered
+    private static void loadMessages(List<String> lines, int[] types, int end,
+            UserDirectory users) throws WhatsAppRuntimeException, ParseException, IOException
+    {
+        Object[] parsed = new Object[end];
+        IntStream.range(0, end).parallel().filter(i -> types[i] == MESSAGE).
+                forEach(i ->
+                {
+                    try
+                    {
+                        parsed[i] = parseMessage(lines.get(i).split(","), users);
+                    } catch (Throwable ex)
+                    {
+                        parsed[i] = ex;
+                    }
+                });
+        Map<User, List<Message>> mailboxes = new IdentityHashMap<>();
+        Object failure = null;
+        deliveries:
+        for (int i = 0; i < end; ++i)
+        {
+            if (types[i] == MESSAGE)
+            {
+                if (parsed[i] instanceof Throwable)
+                {
+                    failure = parsed[i];
+                    break;
+                }
+                @SuppressWarnings("unchecked")
+                List<Delivery> deliveries = (List<Delivery>) parsed[i];
+                for (Delivery delivery : deliveries)
+                {
+                    if (delivery.user == null)
+                    {
+                        failure = new NullPointerException("No user to deliver line " + i + " to");
+                        break deliveries;
+                    }
+                    mailboxes.computeIfAbsent(delivery.user, k -> new ArrayList<>()).
+                            add(delivery.message);
+                }
+            }
+        }
+        mailboxes.entrySet().parallelStream().forEach(mailbox
+                -> mailbox.getKey().getMessages().addAll(mailbox.getValue()));
+        rethrowIfFailed(failure);
+    }
+
+    private static User parseUser(String[] parts) throws WhatsAppRuntimeException
+    {
+        return new User(parts[1], parts[2], parts[3], parts[4], new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    private static void applyList(String[] parts, UserDirectory users) throws WhatsAppRuntimeException
+    {
+        User user = users.getUser(parts[1]);
+        if (parts[0].equals("flist"))
+        {
+            for (int i = 2; i < parts.length; ++i)
+            {
+                user.linkFriend(users.getUser(parts[i]));
+            }
+        } else
+        {
+            BroadcastList newList = new BroadcastList(parts[3], new ArrayList<>());
+            for (int i = 4; i < parts.length; ++i)
+            {
+                newList.addMember(parts[i]);
+            }
+            user.addBroadcastList(newList);
+        }
+    }
+
+    // works out the mailbox appends for a message line without doing them
+    private static List<Delivery> parseMessage(String[] parts, UserDirectory users) throws WhatsAppRuntimeException, ParseException
+    {
+        SimpleDateFormat sdf = DATE_PARSER.get();
+        List<Delivery> deliveries = new ArrayList<>();
+        User sender = users.getUser(parts[1]);
+        if (sender.isBroadcastList(parts[2]))
+        {
+            Message sentMessage = new Message(parts[1], null, parts[2], sdf.
+                    parse(parts[3]), parts[4].
+                    substring(1, parts[4].length() - 1), true);
+            deliveries.add(new Delivery(sender, sentMessage));
+            Iterator<String> memberIterator = sender.getBroadcastList(parts[2]).
+                    getMemberSet().iterator();
+            for (int i = 5; i < parts.length; ++i)
+            {
+                String member = memberIterator.next();
+                Message receivedMessage = new Message(parts[1], member, null, sdf.
+                        parse(parts[3]), parts[4].
+                        substring(1, parts[4].length() - 1), parts[i].
+                        equals("read"));
+                deliveries.add(new Delivery(users.getUser(member), receivedMessage));
+            }
+        } else
+        {
+            Message sentMessage = new Message(parts[1], parts[2], null, sdf.
+                    parse(parts[3]), parts[4].
+                    substring(1, parts[4].length() - 1), true);
+            deliveries.add(new Delivery(sender, sentMessage));
+            Message receivedMessage = new Message(parts[1], parts[2], null, sdf.
+                    parse(parts[3]), parts[4].
+                    substring(1, parts[4].length() - 1), parts[5].
+                    equals("read"));
+            deliveries.add(new Delivery(users.getUser(parts[2]), receivedMessage));
+        }
+        return deliveries;
+    }
+
+    // the first word of a line, exactly what line.split(",")[0] would give
+    private static int typeOf(String line)
+    {
+        int comma = line.indexOf(',');
+        switch (comma < 0 ? line : line.substring(0, comma))
+        {
+            case "user":
+                return USER;
+            case "flist":
+            case "bcast":
+                return LIST;
+            case "message":
+                return MESSAGE;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static void rethrowIfFailed(Object result) throws WhatsAppRuntimeException, ParseException, IOException
+    {
+        if (!(result instanceof Throwable))
+        {
+            return;
+        }
+        if (result instanceof WhatsAppRuntimeException)
+        {
+            throw (WhatsAppRuntimeException) result;
+        }
+        if (result instanceof ParseException)
+        {
+            throw (ParseException) result;
+        }
+        if (result instanceof IOException)
+        {
+            throw (IOException) result;
+        }
+        if (result instanceof RuntimeException)
+        {
+            throw (RuntimeException) result;
+        }
+        if (result instanceof Error)
+        {
+            throw (Error) result;
+        }
+        throw new IllegalStateException((Throwable) result);
+    }
+
+    // decodes chunks that end right after a '\n' in parallel. Lines are split
+    // the way Scanner.nextLine splits them
+    private static List<String> readLines(List<MappedByteBuffer> chunks) throws IOException
+    {
+        Object[] decoded = new Object[chunks.size()];
+        IntStream.range(0, chunks.size()).parallel().forEach(i ->
+        {
+            try
+            {
+                decoded[i] = splitLines(decode(chunks.get(i)));
+            } catch (Throwable ex)
+            {
+                decoded[i] = ex;
+            }
+        });
+
+        List<String> lines = new ArrayList<>();
+        for (Object chunk : decoded)
+        {
+            if (chunk instanceof Throwable)
+            {
+                throw new IOException((Throwable) chunk);
+            }
+            @SuppressWarnings("unchecked")
+            List<String> chunkLines = (List<String>) chunk;
+            lines.addAll(chunkLines);
+        }
+        return lines;
+    }
+
+    // the offset just past the first '\n' at or after from, or size if there
+    // is none
+    private static long nextLineStart(FileChannel channel, long from, long size) throws IOException
+    {
+        long position = from;
+        while (position < size)
+        {
+            int length = (int) Math.min(SCAN_WINDOW, size - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            for (int i = 0; i < length; ++i)
+            {
+                if (window.get(i) == '\n')
+                {
+                    return position + i + 1;
+                }
+            }
+            position += length;
+        }
+        return size;
+    }
+
+    private static CharBuffer decode(ByteBuffer bytes) throws CharacterCodingException
+    {
+        return Charset.defaultCharset().newDecoder().
+                onMalformedInput(CodingErrorAction.REPLACE).
+                onUnmappableCharacter(CodingErrorAction.REPLACE).
+                decode(bytes);
+    }
+
+    // every chunk but the last ends with '\n', so a separator at the very
+    // end never starts another line
+    private static List<String> splitLines(CharBuffer chars)
+    {
+        List<String> lines = new ArrayList<>();
+        int length = chars.length();
+        int lineStart = 0;
+        int i = 0;
+        while (i < length)
+        {
+            char c = chars.get(i);
+            if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085')
+            {
+                lines.add(chars.subSequence(lineStart, i).toString());
+                if (c == '\r' && i + 1 < length && chars.get(i + 1) == '\n')
+                {
+                    ++i;
+                }
+                lineStart = ++i;
+            } else
+            {
+                ++i;
+            }
+        }
+        if (lineStart < length)
+        {
+            lines.add(chars.subSequence(lineStart, length).toString());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,167 @@
+
+import java.io.PrintStream;
+import java.util.Scanner;
+
+/**
+ * The state of one conversation with a user: who is logged in and where
+ * commands are read from and output is written to. The CommandProcessor
+ * works on the session of the thread that calls it.
+ *
+ * Threads that never attached a session use the console session, which keeps
+ * its state in the Config instance exactly like the single user console
+ * program always did. The server attaches a session of its own to every
+ * connection it serves.
+ *
+ * @author Duanyang Jing
+ */
+public class Session
+{
+
+    private static final Session CONSOLE = new ConsoleSession();
+    private static final ThreadLocal<Session> CURRENT = new ThreadLocal<>();
+
+    private User currentUser;
+    private final Scanner input;
+    private final PrintStream output;
+    private final boolean remote;
+
+    // the session backed by Config
+    private static class ConsoleSession extends Session
+    {
+
+        private ConsoleSession()
+        {
+            super(null, null, false);
+        }
+
+        @Override
+        public User getCurrentUser()
+        {
+            return Config.getInstance().getCurrentUser();
+        }
+
+        @Override
+        public void setCurrentUser(User currentUser)
+        {
+            Config.getInstance().setCurrentUser(currentUser);
+        }
+
+        @Override
+        public Scanner getConsoleInput()
+        {
+            return Config.getInstance().getConsoleInput();
+        }
+
+        @Override
+        public PrintStream getConsoleOutput()
+        {
+            return Config.getInstance().getConsoleOutput();
+        }
+    }
+
+    /**
+     * Constructs a session with nobody logged in
+     *
+     * @param input where the commands of this session are read from
+     * @param output where the output of this session is written to
+     */
+    public Session(Scanner input, PrintStream output)
+    {
+        this(input, output, false);
+    }
+
+    /**
+     * Constructs a session with nobody logged in
+     *
+     * @param input where the commands of this session are read from
+     * @param output where the output of this session is written to
+     * @param remote whether the commands come over the network, which keeps
+     * the session from the commands only the machine the program runs on may
+     * use
+     */
+    public Session(Scanner input, PrintStream output, boolean remote)
+    {
+        this.input = input;
+        this.output = output;
+        this.remote = remote;
+    }
+
+    /**
+     * Returns the session of the calling thread
+     *
+     * @return the session attached to this thread, or the console session if
+     * there is none
+     */
+    public static Session current()
+    {
+        Session session = CURRENT.get();
+        return session != null ? session : CONSOLE;
+    }
+
+    /**
+     * Attaches a session to the calling thread. Pass null to go back to the
+     * console session
+     *
+     * @param session the session to attach
+     */
+    public static void attach(Session session)
+    {
+        if (session == null)
+        {
+            CURRENT.remove();
+        } else
+        {
+            CURRENT.set(session);
+        }
+    }
+
+    /**
+     * returns the user logged in to this session
+     *
+     * @return the logged in user or null if nobody is logged in
+     */
+    public User getCurrentUser()
+    {
+        return currentUser;
+    }
+
+    /**
+     * sets the user logged in to this session
+     *
+     * @param currentUser the logged in user, null when logging out
+     */
+    public void setCurrentUser(User currentUser)
+    {
+        this.currentUser = currentUser;
+    }
+
+    /**
+     * whether the commands of this session come over the network
+     *
+     * @return true for the sessions of the server
+     */
+    public boolean isRemote()
+    {
+        return remote;
+    }
+
+    /**
+     * returns the Scanner the commands of this session are read from
+     *
+     * @return the input of this session
+     */
+    public Scanner getConsoleInput()
+    {
+        return input;
+    }
+
+    /**
+     * returns the PrintStream the output of this session is written to
+     *
+     * @return the output of this session
+     */
+    public PrintStream getConsoleOutput()
+    {
+        return output;
+    }
+}
@@ -0,0 +1,754 @@
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * A binary snapshot of all the users, friends, broadcast lists and messages,
+ * written by the checkpoint command. Helper.populateData recognizes a
+ * snapshot by its first bytes and loads it instead of parsing a
+ * pre-population file, which can still be loaded as before to import data.
+ *
+ * A snapshot is laid out in columns so that it loads with a handful of bulk
+ * reads from a memory mapped file instead of parsing every line:
+ *
+ * - a header: magic number, version, the position the write-ahead log had
+ * when the snapshot was taken (-1 if it was off) and the number of entries
+ * in every section
+ *
+ * - the string table: the length of every string, then their UTF-8 bytes.
+ * Names, nicknames and passwords are stored once and referred to by index
+ *
+ * - the users: four columns of string indexes (last name, first name,
+ * nickname, password)
+ *
+ * - the friends: the number of friends of every user, then the user index of
+ * every friend
+ *
+ * - the broadcast lists: the number of lists of every user, the nickname and
+ * member count of every list, then the nickname of every member
+ *
+ * - the envelopes (sender, time and text shared by the copies of a message):
+ * sender, time and text length columns, then the texts
+ *
+ * - the messages: the mailbox size of every user, then envelope, receiver,
+ * broadcast list and read flag columns. -1 stands for no receiver or list
+ *
+ * A snapshot holds every password, so the checkpoint command does not write
+ * one just anywhere. When the whatsapp.snapshot.dir system property names a
+ * directory, every checkpoint goes into it. Otherwise only the console can
+ * take checkpoints, the sessions of the server cannot.
+ *
+ * Everything is big endian. Changing commands take a shared lock for their
+ * change and its log record and a checkpoint takes it exclusively, so a
+ * snapshot never holds half a change and the log position it stores is
+ * exactly where the changes it does not hold start.
+ *
+ * @author Duanyang Jing
+ */
+public class Snapshot
+{
+
+    /**
+     * This is shown when a checkpoint is written
+     */
+    public static final String CHECKPOINT_WRITTEN = "Checkpoint written to %s\n";
+    /**
+     * This is shown when a checkpoint is asked for outside of the snapshot
+     * directory
+     */
+    public static final String CHECKPOINT_OUTSIDE = "Checkpoints can only be written to %s\n";
+    /**
+     * This is shown when a session of the server asks for a checkpoint and
+     * there is no snapshot directory
+     */
+    public static final String CHECKPOINT_REMOTE = "Checkpoints can only be written from the console\n";
+    /**
+     * This is shown when the path of a checkpoint is not a valid path
+     */
+    public static final String INVALID_CHECKPOINT_PATH = "Invalid checkpoint path: %s\n";
+    /**
+     * The system property that names the directory checkpoints are written
+     * to
+     */
+    public static final String DIRECTORY_PROPERTY = "whatsapp.snapshot.dir";
+
+    /**
+     * Held shared while a command changes the state and logs the change, and
+     * exclusively while a checkpoint is taken
+     */
+    static final ReentrantReadWriteLock CHANGES = new ReentrantReadWriteLock();
+
+    // "WASNAPS1"
+    private static final long MAGIC = 0x5741534E41505331L;
+    private static final int VERSION = 1;
+    private static final int NONE = -1;
+    // the largest piece of the file mapped at once
+    private static final int MAX_MAP = 1 << 30;
+
+    // the log position of the loaded snapshot, 0 if none was loaded
+    private static volatile long logPosition;
+
+    private Snapshot()
+    {
+    }
+
+    /**
+     * Works out where a checkpoint asked for by a session goes. With a
+     * snapshot directory, a relative path is taken to be in it and any path
+     * that leads out of it, through .. or a link, is refused. Without one,
+     * the path is taken as it is, for the console only
+     *
+     * @param filename the path the session gave
+     * @param session the session asking
+     * @return the path to write the snapshot to
+     * @throws WhatsAppException with INVALID_CHECKPOINT_PATH if the path is
+     * not valid, with CHECKPOINT_OUTSIDE if it is not in the snapshot
+     * directory, with CHECKPOINT_REMOTE if there is no snapshot directory and
+     * the session is one of the server, with ERROR_IO if the directory of the
+     * path cannot be found
+     */
+    public static Path checkpointTarget(String filename, Session session) throws WhatsAppException
+    {
+        String property = System.getProperty(DIRECTORY_PROPERTY);
+        try
+        {
+            if (property == null || property.isEmpty())
+            {
+                if (session.isRemote())
+                {
+                    throw new WhatsAppException(CHECKPOINT_REMOTE);
+                }
+                return Paths.get(filename);
+            }
+            Path directory = Paths.get(property).toAbsolutePath().normalize();
+            Path target = directory.resolve(filename).normalize();
+            if (!target.startsWith(directory) || target.equals(directory))
+            {
+                throw new WhatsAppException(String.format(CHECKPOINT_OUTSIDE, directory));
+            }
+            // the path may still lead out through a link
+            if (!target.getParent().toRealPath().startsWith(directory.toRealPath()))
+            {
+                throw new WhatsAppException(String.format(CHECKPOINT_OUTSIDE, directory));
+            }
+            return target;
+        } catch (InvalidPathException ex)
+        {
+            throw new WhatsAppException(String.format(INVALID_CHECKPOINT_PATH, filename));
+        } catch (IOException ex)
+        {
+            throw new WhatsAppException(Config.ERROR_IO);
+        }
+    }
+
+    /**
+     * Checks whether a file is a snapshot
+     *
+     * @param filename the path to the file
+     * @return true if the file starts like a snapshot
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isSnapshot(String filename) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+        {
+            ByteBuffer magic = ByteBuffer.allocate(8);
+            while (magic.hasRemaining() && channel.read(magic) >= 0)
+            {
+            }
+            return !magic.hasRemaining() && magic.getLong(0) == MAGIC;
+        }
+    }
+
+    /**
+     * The position of the write-ahead log when the loaded snapshot was taken.
+     * Replaying the log has to start from there
+     *
+     * @return the log position, 0 if no snapshot was loaded and
+     * WriteAheadLog.NO_LOG if the snapshot was taken while the log was off
+     */
+    public static long getLogPosition()
+    {
+        return logPosition;
+    }
+
+    /**
+     * Writes a snapshot of the current state. Changing commands wait while
+     * it is being written, and the messages the FanOutExecutor is still
+     * delivering are delivered before it is. The snapshot is written next to
+     * the target and moved in place once it is complete, then the
+     * write-ahead log starts over after it
+     *
+     * @param filename the path of the snapshot
+     * @throws IOException if the snapshot cannot be written, or the log
+     * cannot start over after it
+     * @throws WhatsAppRuntimeException with MessageArena.TEXT_LOST if the
+     * text of a message was lost
+     */
+    public static void write(String filename) throws IOException, WhatsAppRuntimeException
+    {
+        Path target = Paths.get(filename);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        CHANGES.writeLock().lock();
+        try
+        {
+            FanOutExecutor fanOut = FanOutExecutor.getInstance();
+            if (fanOut != null)
+            {
+                fanOut.drain();
+            }
+            long position = WriteAheadLog.position();
+            Columns columns = new Columns(UserDirectory.getInstance(), position);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Channels.newOutputStream(channel), 1 << 20));
+                columns.writeTo(out);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            WriteAheadLog.truncate(position);
+        } finally
+        {
+            CHANGES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Loads a snapshot into the user directory
+     *
+     * @param filename the path to the snapshot
+     * @throws IOException if the snapshot cannot be read or is damaged
+     * @throws WhatsAppRuntimeException if it holds data the WhatsApp objects
+     * do not accept
+     */
+    public static void load(String filename) throws IOException, WhatsAppRuntimeException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ))
+        {
+            new Loader(channel).load();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException
+                | NegativeArraySizeException ex)
+        {
+            throw new IOException("Damaged snapshot " + filename, ex);
+        }
+    }
+
+    // the state laid out in the columns of the file
+    private static class Columns
+    {
+
+        private final long logPosition;
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final List<User> users;
+        private final int[] userColumns;
+        private final int[] friendCounts;
+        private final IntColumn friends = new IntColumn(1024);
+        private final int[] listCounts;
+        private final IntColumn listNicknames = new IntColumn(1024);
+        private final IntColumn memberCounts = new IntColumn(1024);
+        private final IntColumn members = new IntColumn(1024);
+        private final Map<MessageEnvelope, Integer> envelopeIds;
+        private final List<MessageEnvelope> envelopes = new ArrayList<>();
+        private final int[] mailboxSizes;
+        private final IntColumn messageEnvelopes;
+        private final IntColumn receivers;
+        private final IntColumn lists;
+        private final ByteColumn read;
+
+        private Columns(List<User> directory, long logPosition)
+        {
+            this.logPosition = logPosition;
+            users = new ArrayList<>(directory);
+            Map<User, Integer> userIds = new IdentityHashMap<>();
+            userColumns = new int[users.size() * 4];
+            for (int i = 0; i < users.size(); ++i)
+            {
+                User user = users.get(i);
+                userIds.put(user, i);
+                userColumns[i * 4] = string(user.getLastName());
+                userColumns[i * 4 + 1] = string(user.getFirstName());
+                userColumns[i * 4 + 2] = string(user.getNickname());
+                userColumns[i * 4 + 3] = string(user.getPassword());
+            }
+
+            // size the message columns up front, they are the big ones
+            int messageCount = 0;
+            for (User user : users)
+            {
+                messageCount += user.getMessages().size();
+            }
+            envelopeIds = new IdentityHashMap<>(messageCount);
+            messageEnvelopes = new IntColumn(messageCount);
+            receivers = new IntColumn(messageCount);
+            lists = new IntColumn(messageCount);
+            read = new ByteColumn(messageCount);
+
+            friendCounts = new int[users.size()];
+            listCounts = new int[users.size()];
+            mailboxSizes = new int[users.size()];
+            for (int i = 0; i < users.size(); ++i)
+            {
+                User user = users.get(i);
+                for (User friend : user.getFriends())
+                {
+                    Integer id = userIds.get(friend);
+                    if (id != null)
+                    {
+                        friends.add(id);
+                        ++friendCounts[i];
+                    }
+                }
+                for (BroadcastList list : user.getBroadcastLists())
+                {
+                    listNicknames.add(string(list.getNickname()));
+                    List<String> listMembers = list.getMembers();
+                    memberCounts.add(listMembers.size());
+                    for (String member : listMembers)
+                    {
+                        members.add(string(member));
+                    }
+                    ++listCounts[i];
+                }
+                for (Message message : user.getMessages())
+                {
+                    messageEnvelopes.add(envelope(message.getEnvelope()));
+                    receivers.add(message.getToNickname() == null ? NONE
+                            : string(message.getToNickname()));
+                    lists.add(message.getBroadcastNickname() == null ? NONE
+                            : string(message.getBroadcastNickname()));
+                    read.add(message.isRead() ? (byte) 1 : (byte) 0);
+                    ++mailboxSizes[i];
+                }
+            }
+        }
+
+        private int string(String s)
+        {
+            Integer id = stringIds.get(s);
+            if (id == null)
+            {
+                id = strings.size();
+                stringIds.put(s, id);
+                strings.add(s);
+            }
+            return id;
+        }
+
+        private int envelope(MessageEnvelope envelope)
+        {
+            Integer id = envelopeIds.get(envelope);
+            if (id == null)
+            {
+                id = envelopes.size();
+                envelopeIds.put(envelope, id);
+                envelopes.add(envelope);
+                string(envelope.getFromNickname());
+            }
+            return id;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException, WhatsAppRuntimeException
+        {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(logPosition);
+            out.writeInt(strings.size());
+            out.writeInt(users.size());
+            out.writeInt(friends.size);
+            out.writeInt(listNicknames.size);
+            out.writeInt(members.size);
+            out.writeInt(envelopes.size());
+            out.writeInt(messageEnvelopes.size);
+
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            for (String s : strings)
+            {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(bytes.length);
+            }
+            for (byte[] bytes : encoded)
+            {
+                out.write(bytes);
+            }
+
+            writeInts(out, userColumns, userColumns.length);
+            writeInts(out, friendCounts, friendCounts.length);
+            writeInts(out, friends.values, friends.size);
+            writeInts(out, listCounts, listCounts.length);
+            writeInts(out, listNicknames.values, listNicknames.size);
+            writeInts(out, memberCounts.values, memberCounts.size);
+            writeInts(out, members.values, members.size);
+
+            for (MessageEnvelope envelope : envelopes)
+            {
+                out.writeInt(stringIds.get(envelope.getFromNickname()));
+            }
+            for (MessageEnvelope envelope : envelopes)
+            {
+                out.writeLong(envelope.getSentMillis());
+            }
+            encoded = new ArrayList<>(envelopes.size());
+            for (MessageEnvelope envelope : envelopes)
+            {
+                byte[] bytes = envelope.getMessage().getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(bytes.length);
+            }
+            for (byte[] bytes : encoded)
+            {
+                out.write(bytes);
+            }
+
+            writeInts(out, mailboxSizes, mailboxSizes.length);
+            writeInts(out, messageEnvelopes.values, messageEnvelopes.size);
+            writeInts(out, receivers.values, receivers.size);
+            writeInts(out, lists.values, lists.size);
+            out.write(read.values, 0, read.size);
+        }
+
+        private static void writeInts(DataOutputStream out, int[] values, int size) throws IOException
+        {
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+            for (int done = 0; done < size;)
+            {
+                int n = Math.min(size - done, chunk.capacity() / 4);
+                chunk.clear();
+                chunk.asIntBuffer().put(values, done, n);
+                out.write(chunk.array(), 0, n * 4);
+                done += n;
+            }
+        }
+    }
+
+    // a growable int array
+    private static class IntColumn
+    {
+
+        private int[] values;
+        private int size;
+
+        private IntColumn(int capacity)
+        {
+            values = new int[Math.max(16, capacity)];
+        }
+
+        private void add(int value)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // a growable byte array
+    private static class ByteColumn
+    {
+
+        private byte[] values;
+        private int size;
+
+        private ByteColumn(int capacity)
+        {
+            values = new byte[Math.max(16, capacity)];
+        }
+
+        private void add(byte value)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // reads the columns back through memory mapped pieces of the file
+    private static class Loader
+    {
+
+        private final FileChannel channel;
+        private long position;
+        private String[] strings;
+
+        private Loader(FileChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void load() throws IOException, WhatsAppRuntimeException
+        {
+            long start = System.nanoTime();
+            ByteBuffer header = map(8 + 4 + 8 + 7 * 4);
+            if (header.getLong() != MAGIC || header.getInt() != VERSION)
+            {
+                throw new IOException("Not a snapshot");
+            }
+            long log = header.getLong();
+            int stringCount = count(header);
+            int userCount = count(header);
+            int friendCount = count(header);
+            int listCount = count(header);
+            int memberCount = count(header);
+            int envelopeCount = count(header);
+            int messageCount = count(header);
+
+            strings = strings(ints(stringCount));
+            start = phase("snapshot strings", start);
+
+            int[] userColumns = ints(userCount * 4);
+            User[] users = new User[userCount];
+            for (int i = 0; i < userCount; ++i)
+            {
+                users[i] = new User(string(userColumns[i * 4]), string(userColumns[i * 4 + 1]),
+                        string(userColumns[i * 4 + 2]), string(userColumns[i * 4 + 3]),
+                        new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+            }
+
+            int[] friendCounts = ints(userCount);
+            int[] friends = ints(friendCount);
+            int next = 0;
+            for (int i = 0; i < userCount; ++i)
+            {
+                for (int j = 0; j < friendCounts[i]; ++j)
+                {
+                    users[i].linkFriend(users[friends[next++]]);
+                }
+            }
+
+            int[] listCounts = ints(userCount);
+            int[] listNicknames = ints(listCount);
+            int[] memberCounts = ints(listCount);
+            int[] members = ints(memberCount);
+            int list = 0;
+            int member = 0;
+            for (int i = 0; i < userCount; ++i)
+            {
+                for (int j = 0; j < listCounts[i]; ++j, ++list)
+                {
+                    List<String> nicknames = new ArrayList<>(memberCounts[list]);
+                    for (int k = 0; k < memberCounts[list]; ++k)
+                    {
+                        nicknames.add(string(members[member++]));
+                    }
+                    users[i].addBroadcastList(new BroadcastList(string(listNicknames[list]), nicknames));
+                }
+            }
+
+            start = phase("snapshot users and lists", start);
+
+            int[] senders = ints(envelopeCount);
+            long[] times = longs(envelopeCount);
+            String[] texts = strings(ints(envelopeCount));
+            MessageEnvelope[] envelopes = new MessageEnvelope[envelopeCount];
+            parallel(envelopeCount, i -> envelopes[i] =
+                    new MessageEnvelope(string(senders[i]), times[i], texts[i]));
+            start = phase("snapshot envelopes", start);
+
+            int[] mailboxSizes = ints(userCount);
+            int[] messageEnvelopes = ints(messageCount);
+            int[] receivers = ints(messageCount);
+            int[] lists = ints(messageCount);
+            byte[] read = bytes(messageCount);
+            int[] starts = new int[userCount + 1];
+            for (int i = 0; i < userCount; ++i)
+            {
+                starts[i + 1] = starts[i] + mailboxSizes[i];
+            }
+            if (starts[userCount] != messageCount)
+            {
+                throw new IOException("Damaged snapshot");
+            }
+            parallel(userCount, i ->
+            {
+                Message[] messages = new Message[mailboxSizes[i]];
+                for (int m = starts[i]; m < starts[i + 1]; ++m)
+                {
+                    messages[m - starts[i]] = new Message(envelopes[messageEnvelopes[m]],
+                            receivers[m] == NONE ? null : string(receivers[m]),
+                            lists[m] == NONE ? null : string(lists[m]), read[m] != 0);
+                }
+                users[i].setMessages(new Mailbox(users[i].getNickname(),
+                        Arrays.asList(messages)));
+            });
+
+            start = phase("snapshot mailboxes", start);
+
+            UserDirectory.getInstance().addAll(Arrays.asList(users));
+            phase("snapshot directory", start);
+            logPosition = log;
+        }
+
+        // records a phase that started at start and returns when it ended
+        private static long phase(String name, long start)
+        {
+            long now = System.nanoTime();
+            Metrics.phase(name, now - start);
+            return now;
+        }
+
+        private static int count(ByteBuffer header) throws IOException
+        {
+            int count = header.getInt();
+            if (count < 0)
+            {
+                throw new IOException("Damaged snapshot");
+            }
+            return count;
+        }
+
+        private String string(int id)
+        {
+            return strings[id];
+        }
+
+        // maps the next length bytes of the file, at most MAX_MAP
+        private ByteBuffer map(int length) throws IOException
+        {
+            if (position + length > channel.size())
+            {
+                throw new IOException("Truncated snapshot");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return buffer;
+        }
+
+        private int[] ints(int count) throws IOException
+        {
+            int[] values = new int[count];
+            for (int done = 0; done < count;)
+            {
+                int n = Math.min(count - done, MAX_MAP / 4);
+                map(n * 4).asIntBuffer().get(values, done, n);
+                done += n;
+            }
+            return values;
+        }
+
+        private long[] longs(int count) throws IOException
+        {
+            long[] values = new long[count];
+            for (int done = 0; done < count;)
+            {
+                int n = Math.min(count - done, MAX_MAP / 8);
+                map(n * 8).asLongBuffer().get(values, done, n);
+                done += n;
+            }
+            return values;
+        }
+
+        private byte[] bytes(int count) throws IOException
+        {
+            byte[] values = new byte[count];
+            for (int done = 0; done < count;)
+            {
+                int n = Math.min(count - done, MAX_MAP);
+                map(n).get(values, done, n);
+                done += n;
+            }
+            return values;
+        }
+
+        // decodes strings of the given byte lengths, mapping as many of them
+        // at once as fit in MAX_MAP and decoding those in parallel
+        private String[] strings(int[] lengths) throws IOException
+        {
+            String[] values = new String[lengths.length];
+            int first = 0;
+            while (first < lengths.length)
+            {
+                int last = first;
+                long bytes = 0;
+                while (last < lengths.length && (last == first || bytes + lengths[last] <= MAX_MAP))
+                {
+                    if (lengths[last] < 0)
+                    {
+                        throw new IOException("Damaged snapshot");
+                    }
+                    bytes += lengths[last++];
+                }
+                if (bytes > MAX_MAP)
+                {
+                    throw new IOException("Damaged snapshot");
+                }
+                ByteBuffer window = map((int) bytes);
+                int[] offsets = new int[last - first];
+                for (int i = 1; i < offsets.length; ++i)
+                {
+                    offsets[i] = offsets[i - 1] + lengths[first + i - 1];
+                }
+                int start = first;
+                IntStream.range(0, offsets.length).parallel().forEach(i ->
+                {
+                    byte[] text = new byte[lengths[start + i]];
+                    window.get(offsets[i], text);
+                    values[start + i] = new String(text, StandardCharsets.UTF_8);
+                });
+                first = last;
+            }
+            return values;
+        }
+    }
+
+    // the body of a parallel loop, which may fail like the constructors of
+    // the WhatsApp objects do
+    private interface Step
+    {
+
+        void run(int i) throws WhatsAppRuntimeException;
+    }
+
+    // runs a step for 0 to count - 1 on all cores, rethrowing the first
+    // failure
+    private static void parallel(int count, Step step) throws WhatsAppRuntimeException
+    {
+        WhatsAppRuntimeException[] failure = new WhatsAppRuntimeException[1];
+        IntStream.range(0, count).parallel().forEach(i ->
+        {
+            try
+            {
+                step.run(i);
+            } catch (WhatsAppRuntimeException ex)
+            {
+                synchronized (failure)
+                {
+                    if (failure[0] == null)
+                    {
+                        failure[0] = ex;
+                    }
+                }
+            }
+        });
+        if (failure[0] != null)
+        {
+            throw failure[0];
+        }
+    }
+}
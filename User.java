@@ -1,6 +1,8 @@
-
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is the user class which captures profile information of a single user
@@ -14,9 +16,15 @@ public class User
     private String firstName;
     private String nickname;
     private String password;
-    private List<Message> messages;
-    private List<User> friends;
-    private List<BroadcastList> broadcastLists;
+    private Mailbox messages;
+    // keyed by nickname, in the order the friends were added
+    private ConcurrentOrderedMap<String, User> friends;
+    // keyed by list nickname, in the order the lists were created
+    private ConcurrentOrderedMap<String, BroadcastList> broadcastLists;
+    // member nickname -> the lists above that have the member, in the order
+    // it joined them. The arrays are replaced, never changed, so they can be
+    // read while the owner edits its lists
+    private final Map<String, BroadcastList[]> listsByMember = new ConcurrentHashMap<>();
 
     /**
      * A constructor to instantiate this class. None of the Strings passed to
@@ -53,9 +61,9 @@ public class User
         this.firstName = firstName;
         this.nickname = nickname;
         this.password = password;
-        this.messages = messages;
-        this.friends = friends;
-        this.broadcastLists = broadcastLists;
+        this.setMessages(messages);
+        this.setFriends(friends);
+        this.setBroadcastLists(broadcastLists);
     }
 
     /**
@@ -109,13 +117,15 @@ public class User
     }
 
     /**
-     * A setter for the nickname
+     * A setter for the nickname. The mailbox is built again for the new
+     * owner
      *
      * @param nickname the nickname of a user
      */
     public void setNickname(String nickname)
     {
         this.nickname = nickname;
+        setMessages(messages);
     }
 
     /**
@@ -149,23 +159,38 @@ public class User
     }
 
     /**
-     * A setter for the list of all the user messages
+     * A setter for the list of all the user messages. A mailbox of another
+     * owner is copied into a new one of this user
      *
      * @param messages a list of all the user messages
      */
     public void setMessages(List<Message> messages)
     {
-        this.messages = messages;
+        this.messages = messages instanceof Mailbox
+                && nickname.equals(((Mailbox) messages).getOwner()) ? (Mailbox) messages
+                : new Mailbox(nickname, messages);
+    }
+
+    /**
+     * A getter for the messages of this user as a Mailbox, which can also
+     * look up the messages exchanged with a single counterpart
+     *
+     * @return the mailbox of this user
+     */
+    public Mailbox getMailbox()
+    {
+        return messages;
     }
 
     /**
-     * A getter for the list of friends of this user
+     * A getter for the list of friends of this user. The returned list is a
+     * copy, use addFriend/linkFriend/removeFriend to change it
      *
      * @return a list of all the user's friends
      */
     public List<User> getFriends()
     {
-        return friends;
+        return friends.valuesSnapshot();
     }
 
     /**
@@ -173,19 +198,52 @@ public class User
      *
      * @param friends a list of all friends this user has
      */
-    public void setFriends(List<User> friends)
+    public synchronized void setFriends(List<User> friends)
+    {
+        InboundIndex inbound = inbound();
+        if (this.friends != null)
+        {
+            for (String old : this.friends.keySet())
+            {
+                inbound.removeFriend(this, old);
+            }
+        }
+        ConcurrentOrderedMap<String, User> newFriends = new ConcurrentOrderedMap<>();
+        for (User friend : friends)
+        {
+            if (friend != null && newFriends.putIfAbsent(friend.getNickname(), friend))
+            {
+                inbound.addFriend(this, friend.getNickname());
+            }
+        }
+        this.friends = newFriends;
+    }
+
+    /**
+     * Appends a user to the friend list without any of the checks done by
+     * addFriend. This is meant for loading already validated data, like the
+     * flist lines of the prepopulation file. Unknown (null) users and users
+     * that already are friends are skipped
+     *
+     * @param friend the user to append to the friend list
+     */
+    public void linkFriend(User friend)
     {
-        this.friends = friends;
+        if (friend != null && friends.putIfAbsent(friend.getNickname(), friend))
+        {
+            inbound().addFriend(this, friend.getNickname());
+        }
     }
 
     /**
-     * A getter for the list of broadcast lists owned by this user
+     * A getter for the list of broadcast lists owned by this user. The returned
+     * list is a copy, use addBroadcastList/removeBroadcastList to change it
      *
      * @return the list of broadcast lists
      */
     public List<BroadcastList> getBroadcastLists()
     {
-        return broadcastLists;
+        return broadcastLists.valuesSnapshot();
     }
 
     /**
@@ -193,9 +251,63 @@ public class User
      *
      * @param broadcastLists the list of broadcast lists
      */
-    public void setBroadcastLists(List<BroadcastList> broadcastLists)
+    public synchronized void setBroadcastLists(List<BroadcastList> broadcastLists)
     {
-        this.broadcastLists = broadcastLists;
+        ConcurrentOrderedMap<String, BroadcastList> newLists = new ConcurrentOrderedMap<>();
+        for (String member : listsByMember.keySet())
+        {
+            inbound().removeListing(this, member);
+        }
+        listsByMember.clear();
+        for (BroadcastList list : broadcastLists)
+        {
+            if (newLists.putIfAbsent(list.getNickname(), list))
+            {
+                indexMembers(list);
+            }
+        }
+        this.broadcastLists = newLists;
+    }
+
+    /**
+     * A getter for a single broadcast list owned by this user
+     *
+     * @param broadcastNickname the nickname of the broadcast list
+     * @return the broadcast list or null if this user owns no such list
+     */
+    public BroadcastList getBroadcastList(String broadcastNickname)
+    {
+        return broadcastLists.get(broadcastNickname);
+    }
+
+    /**
+     * A getter for the broadcast lists of this user that have a member
+     *
+     * @param nickname the nickname of the member
+     * @return the lists that have the member, in the order it joined them
+     */
+    public List<BroadcastList> getBroadcastListsWithMember(String nickname)
+    {
+        BroadcastList[] lists = listsByMember.get(nickname);
+        return lists == null ? Collections.emptyList()
+                : Collections.unmodifiableList(Arrays.asList(lists));
+    }
+
+    /**
+     * adds a broadcast list to this user object. If the user already owns a
+     * list with the same nickname, the existing one is kept. Once the list is
+     * added, change its members with addMemberToBroadcastList and
+     * removeMemberFromBroadcastList only, so that
+     * getBroadcastListsWithMember keeps up
+     *
+     * @param list the broadcast list to add
+     */
+    public synchronized void addBroadcastList(BroadcastList list)
+    {
+        if (broadcastLists.putIfAbsent(list.getNickname(), list))
+        {
+            indexMembers(list);
+        }
     }
 
     /**
@@ -205,19 +317,107 @@ public class User
      * @throws WhatsAppException throw this with BCAST_LIST_DOES_NOT_EXIST as
      * the message if the broadcast list asked to remove does not exist
      */
-    public void removeBroadcastList(String broadcastNickname) throws WhatsAppException
+    public synchronized void removeBroadcastList(String broadcastNickname) throws WhatsAppException
     {
         //TODO
-        Iterator<BroadcastList> itr = this.broadcastLists.iterator();
-        boolean exist = false;
-        while (itr.hasNext()) {
-            BroadcastList currList = itr.next();
-            if (currList.getNickname().equals(broadcastNickname)) {
-                itr.remove();
-                exist = true;
-            }
+        BroadcastList list = broadcastLists.remove(broadcastNickname);
+        if (list == null) throw new WhatsAppException(Config.BCAST_LIST_DOES_NOT_EXIST);
+        for (String member : list.getMemberSet())
+        {
+            unindex(member, list);
         }
-        if (!exist) throw new WhatsAppException(Config.BCAST_LIST_DOES_NOT_EXIST);
+    }
+
+    /**
+     * adds a member at the end of a broadcast list of this user object
+     *
+     * @param nickname the nickname of the member to add
+     * @param broadcastNickname the nickname of the broadcast list
+     * @return true if the list exists and nickname was not already a member
+     */
+    public synchronized boolean addMemberToBroadcastList(String nickname, String broadcastNickname)
+    {
+        BroadcastList list = broadcastLists.get(broadcastNickname);
+        if (list == null || !list.addMember(nickname))
+        {
+            return false;
+        }
+        index(nickname, list);
+        return true;
+    }
+
+    /**
+     * removes a member from a broadcast list of this user object
+     *
+     * @param nickname the nickname of the member to remove
+     * @param broadcastNickname the nickname of the broadcast list
+     * @return true if the list exists and nickname was a member
+     */
+    public synchronized boolean removeMemberFromBroadcastList(String nickname, String broadcastNickname)
+    {
+        BroadcastList list = broadcastLists.get(broadcastNickname);
+        if (list == null || !list.removeMember(nickname))
+        {
+            return false;
+        }
+        unindex(nickname, list);
+        return true;
+    }
+
+    private void indexMembers(BroadcastList list)
+    {
+        for (String member : list.getMemberSet())
+        {
+            index(member, list);
+        }
+    }
+
+    // the index is only changed under the lock of this user
+    private void index(String member, BroadcastList list)
+    {
+        BroadcastList[] lists = listsByMember.get(member);
+        if (lists == null)
+        {
+            listsByMember.put(member, new BroadcastList[] {list});
+            inbound().addListing(this, member);
+            return;
+        }
+        BroadcastList[] grown = Arrays.copyOf(lists, lists.length + 1);
+        grown[lists.length] = list;
+        listsByMember.put(member, grown);
+    }
+
+    private void unindex(String member, BroadcastList list)
+    {
+        BroadcastList[] lists = listsByMember.get(member);
+        if (lists == null)
+        {
+            return;
+        }
+        int position = 0;
+        while (position < lists.length && lists[position] != list)
+        {
+            ++position;
+        }
+        if (position == lists.length)
+        {
+            return;
+        }
+        if (lists.length == 1)
+        {
+            listsByMember.remove(member);
+            inbound().removeListing(this, member);
+            return;
+        }
+        BroadcastList[] shrunk = new BroadcastList[lists.length - 1];
+        System.arraycopy(lists, 0, shrunk, 0, position);
+        System.arraycopy(lists, position + 1, shrunk, position, shrunk.length - position);
+        listsByMember.put(member, shrunk);
+    }
+
+    private static InboundIndex inbound()
+    {
+        return UserDirectory.getInstance().getInboundIndex();
     }
 
     /**
@@ -231,13 +431,7 @@ public class User
     public boolean isFriend(String nickname)
     {
         //TODO
-        Iterator<User> itr = friends.iterator();
-        boolean isFriend = false;
-        while (itr.hasNext()) {
-            User currFriend = itr.next();
-            if (currFriend.getNickname().equals(nickname)) isFriend = true;
-        }
-        return isFriend;
+        return friends.containsKey(nickname);
     }
 
     /**
@@ -251,16 +445,7 @@ public class User
     public boolean isBroadcastList(String nickname)
     {
         //TODO
-        Iterator<BroadcastList> itr = broadcastLists.iterator();
-        boolean result = false;
-        while (itr.hasNext()) {
-            BroadcastList currList = itr.next();
-            if (nickname.equals(currList.getNickname())) {
-                result = true;
-                break;
-            }
-        }
-        return result;
+        return broadcastLists.containsKey(nickname);
     }
 
     /**
@@ -289,23 +474,8 @@ public class User
     public boolean isMemberOfBroadcastList(String nickname, String broadcastNickname)
     {
         //TODO
-        Iterator<BroadcastList> itr = broadcastLists.iterator();
-        boolean result = false;
-        while (itr.hasNext()) {
-            BroadcastList currList = itr.next();
-            if (currList.getNickname().equals(broadcastNickname)) {
-                List<String> members = currList.getMembers();
-                Iterator<String> memberItr = members.iterator();
-                while (memberItr.hasNext()) {
-                    String currMember = memberItr.next();
-                    if (currMember.equals(nickname)) {
-                        result = true;
-                        break;
-                    }
-                }
-            }
-        }
-        return result;
+        BroadcastList list = broadcastLists.get(broadcastNickname);
+        return list != null && list.isMember(nickname);
     }
 
     /**
@@ -319,7 +489,7 @@ public class User
      * friend of this user), CANT_LOCATE (if the supplied nickname is not even
      * an existing global contact)
      */
-    public void addFriend(String nickname) throws WhatsAppException
+    public synchronized void addFriend(String nickname) throws WhatsAppException
     {
         //TODO
         if (nickname.equals(this.nickname)) {
@@ -331,47 +501,46 @@ public class User
         if (!Helper.isExistingGlobalContact(nickname)) {
             throw new WhatsAppException(String.format(Config.CANT_LOCATE, nickname));
         }
-        List<User> allUsers = Config.getInstance().getAllUsers();
-        Iterator<User> itr = allUsers.iterator();
-        while (itr.hasNext()) {
-            User currUser = itr.next();
-            if (currUser.getNickname().equals(nickname)) {
-                this.friends.add(currUser);
-                break;
-            }
-        }
+        linkFriend(UserDirectory.getInstance().getUser(nickname));
     }
 
     /**
-     * remove a friend from this user object
+     * remove a friend from this user object, and from the broadcast lists of
+     * this user object that have the friend. Only those lists are looked at
      *
      * @param nickname the nickname of the friend whom to remove as a friend of
      * this user object
      * @throws WhatsAppException throw a new instance of this exception with
      * NOT_A_FRIEND (if nickname is not a friend of this user)
      */
-    public void removeFriend(String nickname) throws WhatsAppException
+    public synchronized void removeFriend(String nickname) throws WhatsAppException
     {
-        if (!isFriend(nickname))
+        if (friends.remove(nickname) == null)
         {
             throw new WhatsAppException(Config.NOT_A_FRIEND);
         }
-        User friendToRemove = Helper.getUserFromNickname(friends, nickname);
-        friends.remove(friendToRemove);
+        inbound().removeFriend(this, nickname);
+        removeFromBroadcastLists(nickname);
+    }
 
-        Iterator<BroadcastList> bcastIterator = broadcastLists.iterator();
-        while (bcastIterator.hasNext())
+    /**
+     * removes a nickname from every broadcast list of this user object that
+     * has it. Only those lists are looked at
+     *
+     * @param nickname the nickname of the member to remove
+     */
+    public synchronized void removeFromBroadcastLists(String nickname)
+    {
+        BroadcastList[] lists = listsByMember.remove(nickname);
+        if (lists == null)
         {
-            BroadcastList bcastList = bcastIterator.next();
-
-            if (!isMemberOfBroadcastList(nickname, bcastList.getNickname()))
-            {
-                Helper.getBroadcastListFromNickname(broadcastLists, bcastList.
-                        getNickname()).
-                        getMembers().
-                        remove(nickname);
-            }
+            return;
+        }
+        for (BroadcastList list : lists)
+        {
+            list.removeMember(nickname);
         }
+        inbound().removeListing(this, nickname);
     }
 
 }
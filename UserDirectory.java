@@ -0,0 +1,462 @@
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The global list of users, the one Config hands out. It is a List, so
+ * existing code that iterates or appends to Config.getAllUsers() keeps
+ * working. The users are kept in an array of slots in list order, with an
+ * identity map from every user to its slot. Next to the slots it keeps a
+ * nickname to User hash index, so that lookups by nickname do not have to
+ * walk the whole list. If two users share a nickname the index points to the
+ * first one in list order, which is what the old linear scans returned. The
+ * directory also keeps a NameIndex for searching users by name, and the
+ * InboundIndex of who points at whom, which the users keep up to date
+ * themselves.
+ *
+ * A removed user leaves an empty slot behind instead of shifting the users
+ * after it, so removing one takes constant time. The slots are closed up the
+ * next time a user is asked for by position, or when the array is full and
+ * at least half of it is empty. Changes lock the directory, lookups by
+ * nickname and searches may run while a user is removed, and iterators walk
+ * the slots as they were when they started, skipping the users removed
+ * since.
+ *
+ * @author Duanyang Jing
+ */
+public class UserDirectory extends AbstractList<User> implements RandomAccess
+{
+
+    /**
+     * This is shown when a user removed its account
+     */
+    public static final String ACCOUNT_REMOVED = "Account removed\n";
+    /**
+     * This is shown when a session makes a change as a user whose account was
+     * removed by another session, which logs it out
+     */
+    public static final String ACCOUNT_GONE = "This account was removed\n";
+
+    private static final int MIN_SLOTS = 16;
+
+    private final Map<String, User> index = new ConcurrentHashMap<>();
+    private final NameIndex names = new NameIndex();
+    private final InboundIndex inbound = new InboundIndex();
+    // the users in list order, null where one was removed. Guarded by this,
+    // and replaced rather than changed when it grows or is closed up, so an
+    // iterator can keep walking the one it started on
+    private User[] slots = new User[MIN_SLOTS];
+    // slots in use, the removed ones included
+    private int end;
+    private int size;
+    private final Map<User, Integer> positions = new IdentityHashMap<>();
+    // users added while another one had their nickname. As long as there are
+    // none, the index entry of a removed user never has to go to another one
+    private int shadowed;
+
+    /**
+     * Constructs an empty directory
+     */
+    public UserDirectory()
+    {
+    }
+
+    /**
+     * Constructs a directory holding the supplied users in the same order
+     *
+     * @param users the users to copy into this directory
+     */
+    public UserDirectory(Collection<User> users)
+    {
+        addAll(users);
+    }
+
+    /**
+     * Returns the directory backing Config.getAllUsers(). If Config still holds
+     * a plain list, it is replaced by a directory with the same contents so
+     * that all callers share one index.
+     *
+     * @return the global user directory
+     */
+    public static UserDirectory getInstance()
+    {
+        Config config = Config.getInstance();
+        List<User> allUsers = config.getAllUsers();
+        if (!(allUsers instanceof UserDirectory))
+        {
+            allUsers = new UserDirectory(allUsers);
+            config.setAllUsers(allUsers);
+        }
+        return (UserDirectory) allUsers;
+    }
+
+    /**
+     * Looks up a user by nickname
+     *
+     * @param nickname the nickname of the user
+     * @return the user with this nickname or null if there is no such user
+     */
+    public User getUser(String nickname)
+    {
+        return index.get(nickname);
+    }
+
+    /**
+     * Checks whether a user with the given nickname exists
+     *
+     * @param nickname the nickname to check for
+     * @return true if a user with this nickname exists
+     */
+    public boolean containsNickname(String nickname)
+    {
+        return index.containsKey(nickname);
+    }
+
+    /**
+     * Returns the index of the users that have a user as a friend or in a
+     * broadcast list
+     *
+     * @return the inbound index
+     */
+    public InboundIndex getInboundIndex()
+    {
+        return inbound;
+    }
+
+    /**
+     * Removes a user and everything that points at it: it stops being the
+     * friend of the users that had it as one and leaves the broadcast lists
+     * it was in, then its own friends and lists are dropped and it leaves
+     * the directory. Only the users found in the InboundIndex are changed.
+     * The messages it exchanged stay in the mailboxes of the others
+     *
+     * @param user the user to remove
+     */
+    public void removeAccount(User user)
+    {
+        String nickname = user.getNickname();
+        for (User follower : inbound.getFriendOf(nickname))
+        {
+            try
+            {
+                follower.removeFriend(nickname);
+            } catch (WhatsAppException ex)
+            {
+                // no longer a friend, nothing to do
+            }
+        }
+        for (User owner : inbound.getListedBy(nickname))
+        {
+            owner.removeFromBroadcastLists(nickname);
+        }
+        user.setFriends(new ArrayList<>());
+        user.setBroadcastLists(new ArrayList<>());
+        remove(user);
+    }
+
+    /**
+     * Does a case insensitive "contains" search on the first or last names of
+     * all users
+     *
+     * @param word the word to search for
+     * @param searchByFirstName true to search the first names, false for the
+     * last names
+     * @return the matching users in directory order
+     */
+    public List<User> searchByName(String word, boolean searchByFirstName)
+    {
+        return names.search(word, searchByFirstName);
+    }
+
+    @Override
+    public synchronized User get(int position)
+    {
+        if (position < 0 || position >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+        }
+        closeUp();
+        return slots[position];
+    }
+
+    @Override
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o)
+    {
+        return positions.containsKey(o);
+    }
+
+    @Override
+    public Iterator<User> iterator()
+    {
+        User[] seen;
+        int seenEnd;
+        synchronized (this)
+        {
+            seen = slots;
+            seenEnd = end;
+        }
+        return new Iterator<User>()
+        {
+            private int next = skip(0);
+            private User last;
+
+            private int skip(int from)
+            {
+                while (from < seenEnd && seen[from] == null)
+                {
+                    ++from;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < seenEnd;
+            }
+
+            @Override
+            public User next()
+            {
+                if (next >= seenEnd)
+                {
+                    throw new NoSuchElementException();
+                }
+                last = seen[next];
+                next = skip(next + 1);
+                return last;
+            }
+
+            @Override
+            public void remove()
+            {
+                if (last == null)
+                {
+                    throw new IllegalStateException();
+                }
+                UserDirectory.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean add(User user)
+    {
+        if (end == slots.length)
+        {
+            if (size * 2 <= end)
+            {
+                closeUp();
+            } else
+            {
+                slots = Arrays.copyOf(slots, Math.max(MIN_SLOTS, end * 2));
+            }
+        }
+        slots[end] = user;
+        positions.putIfAbsent(user, end);
+        ++end;
+        ++size;
+        ++modCount;
+        if (index.putIfAbsent(user.getNickname(), user) != null)
+        {
+            ++shadowed;
+        }
+        names.add(user);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int position, User user)
+    {
+        List<User> users = toList();
+        users.add(position, user);
+        rebuild(users);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends User> users)
+    {
+        for (User user : users)
+        {
+            add(user);
+        }
+        return !users.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean addAll(int position, Collection<? extends User> added)
+    {
+        List<User> users = toList();
+        boolean changed = users.addAll(position, added);
+        rebuild(users);
+        return changed;
+    }
+
+    @Override
+    public synchronized User set(int position, User user)
+    {
+        List<User> users = toList();
+        User old = users.set(position, user);
+        rebuild(users);
+        return old;
+    }
+
+    @Override
+    public synchronized User remove(int position)
+    {
+        if (position < 0 || position >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + position + ", Size: " + size);
+        }
+        closeUp();
+        User old = slots[position];
+        removeSlot(position);
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o)
+    {
+        Integer position = positions.get(o);
+        if (position == null)
+        {
+            return false;
+        }
+        removeSlot(position);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c)
+    {
+        List<User> users = toList();
+        boolean changed = users.removeAll(c);
+        rebuild(users);
+        return changed;
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c)
+    {
+        List<User> users = toList();
+        boolean changed = users.retainAll(c);
+        rebuild(users);
+        return changed;
+    }
+
+    @Override
+    public synchronized boolean removeIf(Predicate<? super User> filter)
+    {
+        List<User> users = toList();
+        boolean changed = users.removeIf(filter);
+        rebuild(users);
+        return changed;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        rebuild(new ArrayList<>());
+    }
+
+    // empties a slot and points the index entry for the nickname of its user
+    // at the first other user in list order that carries it, or drops the
+    // entry if nobody does anymore
+    private void removeSlot(int position)
+    {
+        User old = slots[position];
+        slots[position] = null;
+        positions.remove(old);
+        --size;
+        ++modCount;
+        names.remove(old);
+        String nickname = old.getNickname();
+        if (index.get(nickname) != old)
+        {
+            --shadowed;
+            return;
+        }
+        index.remove(nickname);
+        if (shadowed == 0)
+        {
+            return;
+        }
+        for (int i = 0; i < end; ++i)
+        {
+            if (slots[i] != null && slots[i].getNickname().equals(nickname))
+            {
+                index.put(nickname, slots[i]);
+                --shadowed;
+                return;
+            }
+        }
+    }
+
+    // moves the users together so that slot i holds the user at position i
+    private void closeUp()
+    {
+        if (size == end)
+        {
+            return;
+        }
+        User[] closed = new User[Math.max(MIN_SLOTS, size * 2)];
+        int kept = 0;
+        for (int i = 0; i < end; ++i)
+        {
+            if (slots[i] != null)
+            {
+                closed[kept] = slots[i];
+                positions.put(slots[i], kept);
+                ++kept;
+            }
+        }
+        slots = closed;
+        end = kept;
+    }
+
+    private List<User> toList()
+    {
+        List<User> users = new ArrayList<>(size);
+        for (int i = 0; i < end; ++i)
+        {
+            if (slots[i] != null)
+            {
+                users.add(slots[i]);
+            }
+        }
+        return users;
+    }
+
+    private void rebuild(List<User> users)
+    {
+        slots = new User[MIN_SLOTS];
+        end = 0;
+        size = 0;
+        shadowed = 0;
+        positions.clear();
+        index.clear();
+        names.clear();
+        ++modCount;
+        for (User user : users)
+        {
+            add(user);
+        }
+    }
+}
@@ -36,6 +36,8 @@ public class WhatsApp
         try
         {
             Helper.populateData(args[0]);
+            WriteAheadLog.openFromProperty();
+            Metrics.exportFromProperty();
         } catch (IOException ex)
         {
             Config.getInstance().getConsoleOutput().
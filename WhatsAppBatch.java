@@ -0,0 +1,235 @@
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replays a script of logins and commands without prompting, for regression
+ * runs and capacity planning. The script is read from a file, or from the
+ * standard input if no file is given, and can be either:
+ *
+ * - plain input, exactly what would be typed into the console program: a
+ * nickname and a password line to log in, then one command per line, or
+ *
+ * - a transcript of a console run like sample-run.txt. Its prompts tell which
+ * lines were typed in and everything else is skipped.
+ *
+ * Logins and commands go through the CommandProcessor like in the console
+ * program, and their output goes to the standard output (nowhere with -q).
+ * exit: or the end of the script ends the run. Then the number of commands,
+ * the commands per second and the latency percentiles of every command type
+ * are printed to the standard error so the standard output can still be
+ * diffed against an earlier run.
+ *
+ * @author Duanyang Jing
+ */
+public class WhatsAppBatch
+{
+
+    /**
+     * This is the usage string to be shown if the command line arguments are
+     * wrong
+     */
+    public static final String USAGE = "Usage: java WhatsAppBatch [-q] <path to the pre-population file> [<path to the script>]\n";
+    /**
+     * The first line of the report
+     */
+    public static final String REPORT_TOTAL = "%d commands in %.3f s, %.1f commands/s\n";
+    /**
+     * The header of the latency table of the report
+     */
+    public static final String REPORT_HEADER = "%-26s %9s %10s %10s %10s %10s\n";
+    /**
+     * A row of the latency table, latencies in microseconds
+     */
+    public static final String REPORT_ROW = "%-26s %9d %10.1f %10.1f %10.1f %10.1f\n";
+    /**
+     * The label of logins in the report
+     */
+    public static final String LOGIN = "login";
+
+    private WhatsAppBatch()
+    {
+    }
+
+    // the lines that were typed in, from either kind of script
+    private static class Script
+    {
+
+        private final BufferedReader reader;
+        private final boolean transcript;
+        private String pending;
+
+        private Script(BufferedReader reader) throws IOException
+        {
+            this.reader = reader;
+            pending = reader.readLine();
+            transcript = pending != null && pending.equals(prompt(Config.LOGIN_PROMPT));
+        }
+
+        private String next() throws IOException
+        {
+            if (!transcript)
+            {
+                String line = pending;
+                pending = line == null ? null : reader.readLine();
+                return line;
+            }
+            // output can run into a prompt, so look at how lines end
+            String line = pending;
+            while (line != null && !isPrompt(line))
+            {
+                line = reader.readLine();
+            }
+            String typed = line == null ? null : reader.readLine();
+            pending = typed == null ? null : reader.readLine();
+            return typed;
+        }
+
+        private static boolean isPrompt(String line)
+        {
+            return line.endsWith(prompt(Config.LOGIN_PROMPT))
+                    || line.endsWith(prompt(Config.PASSWORD_PROMPT))
+                    || line.endsWith(prompt(Config.ENTER_COMMAND));
+        }
+
+        private static String prompt(String prompt)
+        {
+            return prompt.trim();
+        }
+    }
+
+    /**
+     * @param args the command line arguments: -q to throw the output of the
+     * commands away, the path to the prepopulation file and optionally the
+     * path to the script
+     */
+    public static void main(String[] args)
+    {
+        PrintStream console = Config.getInstance().getConsoleOutput();
+        boolean quiet = args.length > 0 && args[0].equals("-q");
+        int first = quiet ? 1 : 0;
+        if (args.length - first < 1 || args.length - first > 2)
+        {
+            console.printf(USAGE);
+            System.exit(1);
+        }
+        String dataFile = args[first];
+        String scriptFile = args.length - first == 2 ? args[first + 1] : null;
+        if (!(new File(dataFile)).exists()
+                || (scriptFile != null && !(new File(scriptFile)).exists()))
+        {
+            console.printf(Config.FILE_DOES_NOT_EXIST);
+            System.exit(1);
+        }
+        try
+        {
+            Helper.populateData(dataFile);
+            WriteAheadLog.openFromProperty();
+            Metrics.exportFromProperty();
+        } catch (IOException ex)
+        {
+            console.printf(Config.ERROR_IO);
+            System.exit(1);
+        } catch (WhatsAppRuntimeException | ParseException ex)
+        {
+            console.printf(ex.getMessage());
+            System.exit(1);
+        }
+
+        OutputStream sink = quiet ? OutputStream.nullOutputStream()
+                : new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                scriptFile == null ? System.in : new FileInputStream(scriptFile),
+                Charset.defaultCharset()), 1 << 16);
+                PrintStream output = new PrintStream(sink, false))
+        {
+            run(new Script(reader), new Session(null, output), System.err);
+        } catch (IOException ex)
+        {
+            console.printf(Config.ERROR_IO);
+            System.exit(1);
+        }
+    }
+
+    // replays the script on the session and reports to the given stream
+    private static void run(Script script, Session session, PrintStream report) throws IOException
+    {
+        Map<String, Latencies> latencies = new LinkedHashMap<>();
+        latencies.put(LOGIN, new Latencies());
+        for (CommandParser.Type type : CommandParser.Type.values())
+        {
+            latencies.put(Metrics.label(type), new Latencies());
+        }
+
+        Session.attach(session);
+        long commands = 0;
+        long started = System.nanoTime();
+        try
+        {
+            String line;
+            while ((line = script.next()) != null)
+            {
+                if (session.getCurrentUser() == null)
+                {
+                    String password = script.next();
+                    if (password == null)
+                    {
+                        break;
+                    }
+                    long start = System.nanoTime();
+                    try
+                    {
+                        CommandProcessor.login(line, password);
+                    } catch (WhatsAppException ex)
+                    {
+                        session.getConsoleOutput().printf(ex.getMessage());
+                    }
+                    latencies.get(LOGIN).add(System.nanoTime() - start);
+                } else if (line.equals("exit:"))
+                {
+                    session.setCurrentUser(null);
+                    session.getConsoleOutput().printf(Config.EXITING);
+                    break;
+                } else
+                {
+                    String label = Metrics.label(CommandParser.parse(line).getType());
+                    long start = System.nanoTime();
+                    CommandProcessor.processCommand(line);
+                    latencies.get(label).add(System.nanoTime() - start);
+                }
+                ++commands;
+            }
+            session.getConsoleOutput().flush();
+        } finally
+        {
+            Session.attach(null);
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        report.printf(REPORT_TOTAL, commands, seconds,
+                seconds > 0 ? commands / seconds : 0.0);
+        report.printf(REPORT_HEADER, "command", "count", "p50 us", "p90 us", "p99 us", "max us");
+        for (Map.Entry<String, Latencies> entry : latencies.entrySet())
+        {
+            Latencies l = entry.getValue();
+            if (l.getCount() > 0)
+            {
+                report.printf(REPORT_ROW, entry.getKey(), l.getCount(), l.percentile(50),
+                        l.percentile(90), l.percentile(99), l.percentile(100));
+            }
+        }
+        report.flush();
+    }
+}
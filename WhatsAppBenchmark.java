@@ -0,0 +1,361 @@
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * The data set and the operations of the benchmarks of the hot paths of the
+ * CommandProcessor, which catch performance regressions and measure what the
+ * indexes buy. The benchmarks themselves are JMH benchmarks in the jmh module
+ * of the Maven build, which also sets their parameters, warmup and forks. JMH
+ * does not run benchmarks in the default package and a class in a package
+ * cannot name the classes of this one, so the benchmarks find this class by
+ * name and get every operation from it as an IntConsumer.
+ *
+ * setUp generates a data set in the pre-population format and loads it,
+ * given
+ *
+ * - users: the number of users
+ * - friends: the number of friends of every user
+ * - mailbox: the number of messages in the mailbox of every user
+ * - lists: the number of broadcast lists of every user
+ * - listSize: the number of members of every broadcast list, at most friends
+ *
+ * A benchmark is an operation, and optionally a setup that prepares it and a
+ * teardown that undoes it, which are kept out of the timing. All three get
+ * the number of the operation, and the operations go round robin over the
+ * users with it. The output of the commands is thrown away.
+ *
+ * @author Duanyang Jing
+ */
+public class WhatsAppBenchmark
+{
+
+    // the text of the messages sent and loaded
+    private static final String TEXT = "\"Benchmark message\"";
+    private static final String DATE = "01/19/2016 23:32:56";
+
+    // the benchmarks on the data set loaded last, by name
+    private static Map<String, Benchmark> benchmarks;
+    private static File data;
+
+    private WhatsAppBenchmark()
+    {
+    }
+
+    // one operation, or its preparation, given the number of the operation
+    private interface Step
+    {
+
+        void run(int i) throws Exception;
+    }
+
+    private static class Benchmark
+    {
+
+        private final IntConsumer setup;
+        private final IntConsumer operation;
+        private final IntConsumer teardown;
+
+        private Benchmark(Step setup, Step operation, Step teardown)
+        {
+            this.setup = unchecked(setup);
+            this.operation = unchecked(operation);
+            this.teardown = unchecked(teardown);
+        }
+    }
+
+    // one combination of the parameters
+    private static class Parameters
+    {
+
+        private final int users;
+        private final int friends;
+        private final int mailbox;
+        private final int lists;
+        private final int listSize;
+
+        private Parameters(int users, int friends, int mailbox, int lists, int listSize)
+        {
+            this.users = users;
+            this.friends = Math.min(friends, users - 1);
+            this.mailbox = mailbox;
+            this.lists = lists;
+            this.listSize = Math.min(listSize, this.friends);
+        }
+    }
+
+    /**
+     * Generates the data set for the parameters and loads it in place of all
+     * users, then logs the current thread in. The operations have to run on
+     * that thread
+     *
+     * @param users the number of users, at least 2
+     * @param friends the number of friends of every user, at least 1
+     * @param mailbox the number of messages in every mailbox, at least 1
+     * @param lists the number of broadcast lists of every user, at least 1
+     * @param listSize the number of members of every broadcast list, at least
+     * 1
+     * @throws IOException if the data set cannot be written or read
+     * @throws WhatsAppRuntimeException if the data set cannot be loaded
+     * @throws ParseException if a date of the data set cannot be parsed
+     * @throws IllegalArgumentException if a parameter is too small
+     */
+    public static synchronized void setUp(int users, int friends, int mailbox, int lists,
+            int listSize) throws IOException, WhatsAppRuntimeException, ParseException
+    {
+        if (users < 2 || friends < 1 || mailbox < 1 || lists < 1 || listSize < 1)
+        {
+            throw new IllegalArgumentException("Benchmark parameters too small");
+        }
+        tearDown();
+        Parameters p = new Parameters(users, friends, mailbox, lists, listSize);
+        data = File.createTempFile("whatsapp-benchmark", ".txt");
+        data.deleteOnExit();
+        writeData(p, data);
+        Config.getInstance().setAllUsers(new UserDirectory());
+        Helper.populateData(data.getPath());
+        Session.attach(new Session(null, new PrintStream(OutputStream.nullOutputStream())));
+        benchmarks = benchmarks(p, data.getPath());
+    }
+
+    /**
+     * Deletes the data set and drops all users
+     */
+    public static synchronized void tearDown()
+    {
+        if (data != null)
+        {
+            data.delete();
+            data = null;
+        }
+        benchmarks = null;
+        Config.getInstance().setAllUsers(new UserDirectory());
+    }
+
+    /**
+     * The preparation of an operation, which is not timed
+     *
+     * @param benchmark the name of the benchmark
+     * @return the setup, or null if the operation needs none
+     * @throws IllegalArgumentException if there is no such benchmark
+     */
+    public static IntConsumer setup(String benchmark)
+    {
+        return get(benchmark).setup;
+    }
+
+    /**
+     * The operation of a benchmark. A failure of the operation is thrown as
+     * an IllegalStateException
+     *
+     * @param benchmark the name of the benchmark
+     * @return the operation
+     * @throws IllegalArgumentException if there is no such benchmark
+     */
+    public static IntConsumer operation(String benchmark)
+    {
+        return get(benchmark).operation;
+    }
+
+    /**
+     * What undoes an operation, which is not timed
+     *
+     * @param benchmark the name of the benchmark
+     * @return the teardown, or null if the operation needs none
+     * @throws IllegalArgumentException if there is no such benchmark
+     */
+    public static IntConsumer teardown(String benchmark)
+    {
+        return get(benchmark).teardown;
+    }
+
+    private static synchronized Benchmark get(String name)
+    {
+        Benchmark benchmark = benchmarks == null ? null : benchmarks.get(name);
+        if (benchmark == null)
+        {
+            throw new IllegalArgumentException("No benchmark " + name);
+        }
+        return benchmark;
+    }
+
+    private static IntConsumer unchecked(Step step)
+    {
+        if (step == null)
+        {
+            return null;
+        }
+        return i -> {
+            try
+            {
+                step.run(i);
+            } catch (RuntimeException ex)
+            {
+                throw ex;
+            } catch (Exception ex)
+            {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        };
+    }
+
+    // the benchmarks by name. User k has the users k+1 to k+friends as
+    // friends, and its lists hold a window of them each. Logging a user in
+    // only sets the current user, so it is timed with the operations
+    private static Map<String, Benchmark> benchmarks(Parameters p, String data)
+    {
+        int n = p.users;
+        String[] nicknames = new String[n];
+        String[] passwords = new String[n];
+        String[] firstNames = new String[n];
+        String[] lastNames = new String[n];
+        String[] firstLists = new String[n];
+        for (int k = 0; k < n; ++k)
+        {
+            nicknames[k] = nickname(k);
+            passwords[k] = "p" + k;
+            firstNames[k] = "f" + k;
+            lastNames[k] = "l" + k;
+            firstLists[k] = listNickname(k, 0);
+        }
+        Session session = Session.current();
+        // the lists a removed friend was taken out of, to put it back
+        List<BroadcastList> removedFrom = new ArrayList<>();
+
+        Map<String, Benchmark> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("populateData", new Benchmark(
+                i -> Config.getInstance().setAllUsers(new UserDirectory()),
+                i -> Helper.populateData(data), null));
+        benchmarks.put("login", new Benchmark(null,
+                i -> CommandProcessor.login(nicknames[i % n], passwords[i % n]), null));
+        Step logIn = i -> session.setCurrentUser(user(i % n));
+        benchmarks.put("searchFirstName", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.search(firstNames[i % n], true);
+        }, null));
+        benchmarks.put("searchLastName", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.search(lastNames[i % n], false);
+        }, null));
+        // the unread variants get one new message from a friend every time so
+        // that they always have something to read
+        benchmarks.put("readUnreadFrom", new Benchmark(i -> {
+            logIn.run(i);
+            CommandProcessor.deliverMessage(user(i % n - 1 + n), nicknames[i % n],
+                    new Date(), TEXT);
+        }, i -> CommandProcessor.readMessage(nicknames[(i % n - 1 + n) % n], true), null));
+        benchmarks.put("readAllFrom", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.readMessage(nicknames[(i + 1) % n], false);
+        }, null));
+        benchmarks.put("readUnread", new Benchmark(i -> {
+            logIn.run(i);
+            CommandProcessor.deliverMessage(user(i % n - 1 + n), nicknames[i % n],
+                    new Date(), TEXT);
+        }, i -> CommandProcessor.readMessage(null, true), null));
+        benchmarks.put("readAll", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.readMessage(null, false);
+        }, null));
+        benchmarks.put("removeFriend", new Benchmark(i -> {
+            logIn.run(i);
+            removedFrom.clear();
+            removedFrom.addAll(user(i % n).getBroadcastListsWithMember(nicknames[(i + 1) % n]));
+        }, i -> CommandProcessor.removeFriend(nicknames[(i + 1) % n]), i -> {
+            user(i % n).linkFriend(user(i + 1));
+            for (BroadcastList list : removedFrom)
+            {
+                user(i % n).addMemberToBroadcastList(nicknames[(i + 1) % n], list.getNickname());
+            }
+        }));
+        // sending grows the mailboxes, which the other benchmarks would see
+        // if they ran on the same data set after these
+        benchmarks.put("sendToFriend", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.sendMessage(nicknames[(i + 1) % n], TEXT);
+        }, null));
+        benchmarks.put("sendToList", new Benchmark(null, i -> {
+            logIn.run(i);
+            CommandProcessor.sendMessage(firstLists[i % n], TEXT);
+        }, null));
+        return benchmarks;
+    }
+
+    private static User user(int k)
+    {
+        UserDirectory users = UserDirectory.getInstance();
+        return users.get(k % users.size());
+    }
+
+    private static String nickname(int k)
+    {
+        return "u" + k;
+    }
+
+    private static String listNickname(int k, int list)
+    {
+        return "b" + k + "_" + list;
+    }
+
+    // writes a pre-population file for the parameters. Every user sends half
+    // of its mailbox size in messages to its friends in turn, so that with
+    // the messages received every mailbox ends up about that size. Every
+    // other message is unread
+    private static void writeData(Parameters p, File file) throws IOException
+    {
+        int n = p.users;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), Charset.defaultCharset()), 1 << 16))
+        {
+            for (int k = 0; k < n; ++k)
+            {
+                out.write("user,l" + k + ",f" + k + "," + nickname(k) + ",p" + k + "\n");
+            }
+            for (int k = 0; k < n; ++k)
+            {
+                StringBuilder line = new StringBuilder("flist,").append(nickname(k));
+                for (int j = 1; j <= p.friends; ++j)
+                {
+                    line.append(',').append(nickname((k + j) % n));
+                }
+                out.write(line.append('\n').toString());
+            }
+            for (int k = 0; k < n; ++k)
+            {
+                for (int list = 0; list < p.lists; ++list)
+                {
+                    StringBuilder line = new StringBuilder("bcast,").append(nickname(k)).
+                            append(",\"list ").append(list).append("\",").
+                            append(listNickname(k, list));
+                    for (int j = 0; j < p.listSize; ++j)
+                    {
+                        line.append(',').append(nickname((k + 1 + (list + j) % p.friends) % n));
+                    }
+                    out.write(line.append('\n').toString());
+                }
+            }
+            for (int k = 0; k < n; ++k)
+            {
+                for (int m = 0; m < p.mailbox / 2; ++m)
+                {
+                    out.write("message," + nickname(k) + "," + nickname((k + 1 + m % p.friends) % n)
+                            + "," + DATE + "," + TEXT + (m % 2 == 0 ? ",read\n" : ",unread\n"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs WhatsApp as a server on the local machine. Every TCP connection to the
+ * port is a session of its own, served on its own thread, that goes through
+ * the same login prompts and command grammar as the console program. Many
+ * users can therefore be logged in and send messages at the same time.
+ * exit: or closing the connection ends a session, the server keeps running.
+ *
+ * @author Duanyang Jing
+ */
+public class WhatsAppServer
+{
+
+    /**
+     * This is the usage string to be shown if the command line arguments are
+     * not a pre-population file and a port
+     */
+    public static final String USAGE = "Usage: java WhatsAppServer <path to the pre-population file> <port>\n";
+    /**
+     * This is shown once the server accepts connections
+     */
+    public static final String LISTENING = "Listening on port %d\n";
+
+    private WhatsAppServer()
+    {
+    }
+
+    /**
+     * @param args the command line arguments. args[0] must be the path to the
+     * prepopulation file and args[1] the port to listen on
+     */
+    public static void main(String[] args)
+    {
+        PrintStream console = Config.getInstance().getConsoleOutput();
+        int port;
+        try
+        {
+            if (args.length != 2)
+            {
+                throw new NumberFormatException();
+            }
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException ex)
+        {
+            console.printf(USAGE);
+            System.exit(1);
+            return;
+        }
+        if (!(new File(args[0])).exists())
+        {
+            console.printf(Config.FILE_DOES_NOT_EXIST);
+            System.exit(1);
+        }
+        try
+        {
+            Helper.populateData(args[0]);
+            WriteAheadLog.openFromProperty();
+            Metrics.exportFromProperty();
+        } catch (IOException ex)
+        {
+            console.printf(Config.ERROR_IO);
+            System.exit(1);
+        } catch (WhatsAppRuntimeException | ParseException ex)
+        {
+            console.printf(ex.getMessage());
+            System.exit(1);
+        }
+
+        ExecutorService sessions = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress()))
+        {
+            console.printf(LISTENING, server.getLocalPort());
+            while (true)
+            {
+                Socket socket = server.accept();
+                sessions.execute(() -> serve(socket));
+            }
+        } catch (IOException ex)
+        {
+            console.printf(Config.ERROR_IO);
+        } finally
+        {
+            sessions.shutdown();
+        }
+    }
+
+    /**
+     * Serves one connection until it sends exit: or goes away
+     *
+     * @param socket the connection of the session
+     */
+    public static void serve(Socket socket)
+    {
+        try (Socket s = socket;
+                Scanner input = new Scanner(s.getInputStream(), Charset.defaultCharset());
+                PrintStream output = new PrintStream(new BufferedOutputStream(s.getOutputStream()), true))
+        {
+            run(new Session(input, output, true));
+        } catch (IOException ex)
+        {
+            // nothing to tell a connection that is gone
+        }
+    }
+
+    /**
+     * Runs the login/command loop of the console program on a session, on
+     * the calling thread
+     *
+     * @param session the session to run
+     */
+    public static void run(Session session)
+    {
+        Session.attach(session);
+        try
+        {
+            String command = "";
+            while (!command.equals("exit:"))
+            {
+                while (session.getCurrentUser() == null)
+                {
+                    session.getConsoleOutput().printf(Config.LOGIN_PROMPT);
+                    String nickname = readLine(session);
+                    if (nickname == null)
+                    {
+                        return;
+                    }
+                    session.getConsoleOutput().printf(Config.PASSWORD_PROMPT);
+                    String password = readLine(session);
+                    if (password == null)
+                    {
+                        return;
+                    }
+                    try
+                    {
+                        CommandProcessor.login(nickname, password);
+                    } catch (WhatsAppException ex)
+                    {
+                        session.getConsoleOutput().printf(ex.getMessage());
+                    }
+                }
+                while (session.getCurrentUser() != null)
+                {
+                    session.getConsoleOutput().printf(Config.ENTER_COMMAND);
+                    command = readLine(session);
+                    if (command == null)
+                    {
+                        return;
+                    }
+                    if (!command.equals("exit:"))
+                    {
+                        CommandProcessor.processCommand(command);
+                    } else
+                    {
+                        session.setCurrentUser(null);
+                    }
+                }
+            }
+            session.getConsoleOutput().printf(Config.EXITING);
+        } finally
+        {
+            Session.attach(null);
+        }
+    }
+
+    // the next line the session sends, or null once the other side closed
+    // the connection. Only the reading is guarded, so that a failing command
+    // is never taken for a closed connection
+    private static String readLine(Session session)
+    {
+        try
+        {
+            return session.getConsoleInput().nextLine();
+        } catch (NoSuchElementException | IllegalStateException ex)
+        {
+            return null;
+        }
+    }
+}
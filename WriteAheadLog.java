@@ -0,0 +1,577 @@
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * An append only binary log of the commands that change the state:
+ * sendMessage, addFriend, removeFriend, addFriendToBcast,
+ * removeFriendFromBcast, removeBroadcastList and removeAccount. It is off unless the
+ * whatsapp.wal system property names a log file. When it is on, every change
+ * is appended to the log and the command waits until its record is synced
+ * to disk before it says it succeeded. On startup the log is replayed on top
+ * of what the pre-population file loaded, so a restart finds everything the
+ * earlier runs did. On top of a snapshot only the records logged after the
+ * snapshot was taken are replayed, starting right where they are.
+ *
+ * A log position counts the bytes of records ever appended, so it keeps
+ * growing across the files the log goes through. Every file starts with
+ * MAGIC and the position of its first record. Once a snapshot is written the
+ * log starts over in a new file that holds no record yet, so the log only
+ * grows with the changes since the last snapshot. The records before it are
+ * gone then, so a restart has to load that snapshot, a log that starts after
+ * what was loaded is refused. A file without MAGIC is a log from before
+ * there were snapshots and starts at 0.
+ *
+ * A log that cannot be written or synced stops the changes: the ones
+ * already made stay, every later one is refused with ERROR_IO.
+ *
+ * Syncing is group committed: a single flusher thread writes out whatever
+ * records piled up while it was syncing the previous batch and syncs them
+ * with one force, so commands issued at the same time share one sync.
+ * Appending only wakes the flusher, and the flusher wakes the commands
+ * waiting for their records once per sync.
+ *
+ * A record is appended while holding the lock on the user that issued the
+ * command, the same lock that is held while its change is made, so the
+ * changes of every user are logged in the order they were made. Messages are
+ * delivered and logged one at a time, so that every mailbox gets its
+ * messages in the order they are logged and replaying the log fills it in
+ * the same order. Whether a message was read is not logged.
+ *
+ * Every record is its length, the CRC32 of its body and its body: the
+ * operation code, the nickname of the user that issued the command, the
+ * time for messages and the arguments of the command. A record cut short by
+ * a crash, or one that does not match its CRC, ends the log and is cut off
+ * when the log is opened.
+ *
+ * @author Duanyang Jing
+ */
+public class WriteAheadLog
+{
+
+    /**
+     * The system property that names the log file
+     */
+    public static final String PROPERTY = "whatsapp.wal";
+    /**
+     * The log position of a snapshot taken while the log was off
+     */
+    public static final long NO_LOG = -1;
+    /**
+     * The first 8 bytes of every log file, before the position of its first
+     * record
+     */
+    public static final long MAGIC = 0x5741574C4F470001L;
+
+    /**
+     * The changes that are logged
+     */
+    public enum Operation
+    {
+        SEND_MESSAGE(1), ADD_FRIEND(2), REMOVE_FRIEND(3), ADD_TO_BCAST(4),
+        REMOVE_FROM_BCAST(5), REMOVE_BCAST(6), REMOVE_ACCOUNT(7);
+
+        private final byte code;
+
+        Operation(int code)
+        {
+            this.code = (byte) code;
+        }
+
+        private static Operation of(byte code)
+        {
+            for (Operation operation : values())
+            {
+                if (operation.code == code)
+                {
+                    return operation;
+                }
+            }
+            return null;
+        }
+    }
+
+    // length and CRC in front of every body
+    private static final int HEADER = 8;
+    // operation, time and three string lengths
+    private static final int MIN_BODY = 21;
+    private static final int MAX_BODY = 1 << 24;
+    // MAGIC and the position of the first record in front of every file
+    private static final int FILE_HEADER = 16;
+
+    private static volatile WriteAheadLog instance;
+
+    private final Path path;
+    // replaced when the log starts over, which happens while nothing is
+    // appended and so while the flusher waits
+    private FileChannel channel;
+    private final Thread flusher;
+    // records appended but not written yet
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+    // log positions: everything up to appended is in pending or on disk,
+    // everything up to durable is synced. The flusher waits on this, the
+    // commands waiting for durable wait on synced, which guards it
+    private long appended;
+    private final Object synced = new Object();
+    private long durable;
+    private volatile IOException failure;
+
+    private WriteAheadLog(Path path, FileChannel channel, long end)
+    {
+        this.path = path;
+        this.channel = channel;
+        this.appended = end;
+        this.durable = end;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Opens the log named by the whatsapp.wal system property, if any, and
+     * replays it. Call this once the pre-population file or snapshot is
+     * loaded. When a snapshot was loaded, only the records logged after it
+     * was taken are replayed
+     *
+     * @throws IOException if the log cannot be read or opened
+     */
+    public static void openFromProperty() throws IOException
+    {
+        String path = System.getProperty(PROPERTY);
+        if (path != null && !path.isEmpty())
+        {
+            long start = System.nanoTime();
+            open(path, Snapshot.getLogPosition());
+            Metrics.phase("log replay", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Replays the log at the given path onto the loaded users, then keeps it
+     * open for the changes to come. Records that do not apply anymore, say
+     * because the pre-population file changed since, are skipped
+     *
+     * @param path the log file, created if it does not exist
+     * @param from where to start replaying: 0 on top of a pre-population file,
+     * the log position of the snapshot on top of a snapshot. NO_LOG only opens
+     * a log without records, since the snapshot may already hold any record
+     * in it
+     * @throws IOException if the log cannot be read or opened, starts after
+     * or ends before from, or has records for NO_LOG, in which case it is
+     * not the log the snapshot was taken with
+     */
+    public static synchronized void open(String path, long from) throws IOException
+    {
+        if (instance != null)
+        {
+            throw new IllegalStateException("The log is already open");
+        }
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            long size = channel.size();
+            long first = 0;
+            int start = 0;
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0)
+            {
+            }
+            if (size == 0 || (!header.hasRemaining() && header.getLong(0) == MAGIC))
+            {
+                first = size == 0 ? 0 : header.getLong(8);
+                start = FILE_HEADER;
+            }
+            if (from == NO_LOG)
+            {
+                if (size > start)
+                {
+                    throw new IOException("The snapshot was taken without a log, " + path
+                            + " is not empty");
+                }
+                from = first;
+            }
+            if (from < first)
+            {
+                throw new IOException("The log " + path + " starts after the snapshot");
+            }
+            if (Math.max(size, start) - start + first < from)
+            {
+                throw new IOException("The log " + path + " ends before the snapshot");
+            }
+            long end = replay(channel, start + from - first, from);
+            if (size == 0)
+            {
+                channel.write(header.clear().putLong(MAGIC).putLong(first).flip(), 0);
+            }
+            // drop a torn tail so new records follow the last good one
+            channel.truncate(start + end - first);
+            channel.position(start + end - first);
+            instance = new WriteAheadLog(Paths.get(path), channel, end);
+        } catch (IOException | RuntimeException ex)
+        {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Where the next record will go, which is where the changes made from
+     * now on start in the log
+     *
+     * @return the log position, NO_LOG if the log is off
+     */
+    public static long position()
+    {
+        WriteAheadLog log = instance;
+        if (log == null)
+        {
+            return NO_LOG;
+        }
+        synchronized (log)
+        {
+            return log.appended;
+        }
+    }
+
+    /**
+     * Starts the log over after a snapshot was written, so that it only
+     * holds the changes made after the snapshot. The records before are
+     * synced first, and the new file replaces the old one in one move. Call
+     * it while changes wait, once the snapshot is in place
+     *
+     * @param position the log position of the snapshot, what position()
+     * returned when it was taken. Nothing is done for NO_LOG or if the log
+     * is off
+     * @throws IOException if the new file cannot be written, the old one is
+     * kept then, or if the log failed
+     */
+    public static void truncate(long position) throws IOException
+    {
+        WriteAheadLog log = instance;
+        if (log != null && position != NO_LOG)
+        {
+            log.restart(position);
+        }
+    }
+
+    /**
+     * Appends a change to the log, if the log is on. Call it while holding
+     * the lock on the user that made the change, right after making it
+     *
+     * @param operation the change
+     * @param nickname the user that made the change
+     * @param first the first argument of the command: the receiver of a
+     * message or the friend of the bcast commands
+     * @param second the second argument of the command: the text of a message
+     * or the broadcast list of the bcast commands, null if there is none
+     * @param time the time a message was sent at, 0 for other changes
+     * @return the ticket to pass to sync, 0 if the log is off
+     */
+    public static long append(Operation operation, String nickname, String first,
+            String second, long time)
+    {
+        WriteAheadLog log = instance;
+        if (log == null)
+        {
+            return 0;
+        }
+        byte[] user = nickname.getBytes(StandardCharsets.UTF_8);
+        byte[] a = first.getBytes(StandardCharsets.UTF_8);
+        byte[] b = second == null ? new byte[0] : second.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 12 + user.length + a.length + b.length);
+        body.put(operation.code).putLong(time);
+        body.putInt(user.length).put(user);
+        body.putInt(a.length).put(a);
+        body.putInt(b.length).put(b);
+        body.flip();
+        return log.write(body);
+    }
+
+    /**
+     * Refuses changes once the log could not be written. A change that is
+     * not logged would be lost on a restart, so once a write or sync fails
+     * no change is made anymore. Call it with the locks that append is called
+     * with, before making the change
+     *
+     * @throws WhatsAppException with ERROR_IO if the log failed
+     */
+    public static void checkWritable() throws WhatsAppException
+    {
+        WriteAheadLog log = instance;
+        if (log != null && log.failure != null)
+        {
+            throw new WhatsAppException(Config.ERROR_IO);
+        }
+    }
+
+    /**
+     * Waits until the change with the given ticket is synced to disk, or
+     * until the log failed. The change was made either way, so it is not
+     * reported as failed, but checkWritable refuses every change after it
+     *
+     * @param ticket what append returned
+     */
+    public static void sync(long ticket)
+    {
+        WriteAheadLog log = instance;
+        if (log != null && ticket > 0)
+        {
+            log.await(ticket);
+        }
+    }
+
+    private synchronized long write(ByteBuffer body)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        int length = HEADER + body.remaining();
+        if (pending.remaining() < length)
+        {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + length));
+            pending.flip();
+            pending = bigger.put(pending);
+        }
+        // the flusher only waits while nothing is pending
+        if (pending.position() == 0)
+        {
+            notify();
+        }
+        pending.putInt(body.remaining()).putInt((int) crc.getValue()).put(body);
+        appended += length;
+        return appended;
+    }
+
+    private void await(long ticket)
+    {
+        boolean interrupted = false;
+        synchronized (synced)
+        {
+            while (durable < ticket && failure == null)
+            {
+                try
+                {
+                    synced.wait();
+                } catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // once everything up to position is synced nothing is pending and the
+    // flusher waits, as nothing is appended while changes wait
+    private void restart(long position) throws IOException
+    {
+        await(position);
+        if (failure != null)
+        {
+            throw new IOException("The log failed", failure);
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel fresh = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        FileChannel old;
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER).putLong(MAGIC).putLong(position);
+            header.flip();
+            while (header.hasRemaining())
+            {
+                fresh.write(header);
+            }
+            fresh.force(true);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex)
+        {
+            fresh.close();
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        synchronized (this)
+        {
+            old = channel;
+            channel = fresh;
+        }
+        old.close();
+    }
+
+    // writes and syncs everything that is pending, one batch at a time
+    private void flushLoop()
+    {
+        while (true)
+        {
+            ByteBuffer batch;
+            long end;
+            FileChannel out;
+            synchronized (this)
+            {
+                while (pending.position() == 0)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException ex)
+                    {
+                        return;
+                    }
+                }
+                batch = pending;
+                end = appended;
+                out = channel;
+                pending = spare;
+                spare = batch;
+            }
+            try
+            {
+                batch.flip();
+                while (batch.hasRemaining())
+                {
+                    out.write(batch);
+                }
+                out.force(false);
+            } catch (IOException ex)
+            {
+                failure = ex;
+                synchronized (synced)
+                {
+                    synced.notifyAll();
+                }
+                return;
+            }
+            batch.clear();
+            synchronized (synced)
+            {
+                durable = end;
+                synced.notifyAll();
+            }
+        }
+    }
+
+    // applies the good records of the log from the given offset in the file
+    // on, which is the log position from, and returns the position they end
+    // at
+    private static long replay(FileChannel channel, long offset, long from) throws IOException
+    {
+        // not closed, that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(offset)), 1 << 16));
+        long good = from;
+        while (true)
+        {
+            byte[] body;
+            int crc;
+            try
+            {
+                int length = in.readInt();
+                crc = in.readInt();
+                if (length < MIN_BODY || length > MAX_BODY)
+                {
+                    return good;
+                }
+                body = new byte[length];
+                in.readFully(body);
+            } catch (EOFException ex)
+            {
+                return good;
+            }
+            CRC32 check = new CRC32();
+            check.update(body);
+            if ((int) check.getValue() != crc || !apply(ByteBuffer.wrap(body)))
+            {
+                return good;
+            }
+            good += HEADER + body.length;
+        }
+    }
+
+    // applies one record. Returns false if it cannot be decoded
+    private static boolean apply(ByteBuffer body)
+    {
+        Operation operation = Operation.of(body.get());
+        long time = body.getLong();
+        String nickname = string(body);
+        String first = string(body);
+        String second = string(body);
+        if (operation == null || nickname == null || first == null || second == null)
+        {
+            return false;
+        }
+        User user = UserDirectory.getInstance().getUser(nickname);
+        if (user == null)
+        {
+            return true;
+        }
+        try
+        {
+            switch (operation)
+            {
+                case SEND_MESSAGE:
+                    CommandProcessor.deliverMessage(user, first, new Date(time), second);
+                    break;
+                case ADD_FRIEND:
+                    user.addFriend(first);
+                    break;
+                case REMOVE_FRIEND:
+                    user.removeFriend(first);
+                    break;
+                case ADD_TO_BCAST:
+                    user.addMemberToBroadcastList(first, second);
+                    break;
+                case REMOVE_FROM_BCAST:
+                    user.removeMemberFromBroadcastList(first, second);
+                    break;
+                case REMOVE_BCAST:
+                    user.removeBroadcastList(first);
+                    break;
+                case REMOVE_ACCOUNT:
+                    UserDirectory.getInstance().removeAccount(user);
+                    break;
+                default:
+                    break;
+            }
+        } catch (WhatsAppException | WhatsAppRuntimeException ex)
+        {
+            // does not apply to this pre-population file, skip it
+        }
+        return true;
+    }
+
+    private static String string(ByteBuffer body)
+    {
+        if (body.remaining() < 4)
+        {
+            return null;
+        }
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining())
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
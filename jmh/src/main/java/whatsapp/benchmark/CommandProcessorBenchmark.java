@@ -0,0 +1,213 @@
+package whatsapp.benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * JMH benchmarks of the hot paths of the CommandProcessor, to catch
+ * performance regressions and to measure what the indexes buy. Every
+ * benchmark runs on a data set generated for its parameters:
+ *
+ * - users: the number of users
+ * - friends: the number of friends of every user
+ * - mailbox: the number of messages in the mailbox of every user
+ * - lists: the number of broadcast lists of every user
+ * - listSize: the number of members of every broadcast list, at most friends
+ *
+ * The data set and the operations come from the WhatsAppBenchmark class of
+ * the program, which is in the default package and so is called through
+ * reflection once per trial. Every benchmark runs in a JVM of its own, so
+ * the messages sent by one do not grow the mailboxes of another. The
+ * program keeps its users in one directory, so the benchmarks run on one
+ * thread.
+ *
+ * Run target/benchmarks.jar with java -jar, giving -p to change the
+ * parameters, for example -p users=1000,100000.
+ *
+ * @author Duanyang Jing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Threads(1)
+public class CommandProcessorBenchmark
+{
+
+    /**
+     * The data set of a benchmark and its operation, which goes round robin
+     * over the users with the number of the operation
+     */
+    @State(Scope.Thread)
+    public static class Fixture
+    {
+
+        @Param({"1000", "10000"})
+        public int users;
+        @Param({"50"})
+        public int friends;
+        @Param({"200"})
+        public int mailbox;
+        @Param({"10"})
+        public int lists;
+        @Param({"10", "50"})
+        public int listSize;
+
+        private Class<?> fixture;
+        private IntConsumer operation;
+        IntConsumer setup;
+        IntConsumer teardown;
+        int i;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkParams params) throws Throwable
+        {
+            String benchmark = params.getBenchmark();
+            benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+            fixture = Class.forName("WhatsAppBenchmark");
+            call("setUp", new Class<?>[]{int.class, int.class, int.class, int.class, int.class},
+                    users, friends, mailbox, lists, listSize);
+            operation = (IntConsumer) call("operation", new Class<?>[]{String.class}, benchmark);
+            setup = (IntConsumer) call("setup", new Class<?>[]{String.class}, benchmark);
+            teardown = (IntConsumer) call("teardown", new Class<?>[]{String.class}, benchmark);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Throwable
+        {
+            call("tearDown", new Class<?>[0]);
+        }
+
+        /**
+         * Does the next operation
+         */
+        public void run()
+        {
+            operation.accept(i++);
+        }
+
+        private Object call(String name, Class<?>[] types, Object... args) throws Throwable
+        {
+            Method method = fixture.getMethod(name, types);
+            try
+            {
+                return method.invoke(null, args);
+            } catch (InvocationTargetException ex)
+            {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    /**
+     * A fixture whose operations need a setup or a teardown, which run
+     * around every operation and are not timed
+     */
+    @State(Scope.Thread)
+    public static class Staged extends Fixture
+    {
+
+        @Setup(Level.Invocation)
+        public void prepare()
+        {
+            if (setup != null)
+            {
+                setup.accept(i);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore()
+        {
+            if (teardown != null)
+            {
+                teardown.accept(i - 1);
+            }
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void populateData(Staged fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void login(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void searchFirstName(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void searchLastName(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void readUnreadFrom(Staged fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void readAllFrom(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void readUnread(Staged fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void readAll(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void removeFriend(Staged fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void sendToFriend(Fixture fixture)
+    {
+        fixture.run();
+    }
+
+    @Benchmark
+    public void sendToList(Fixture fixture)
+    {
+        fixture.run();
+    }
+}